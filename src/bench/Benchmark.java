@@ -0,0 +1,371 @@
+package bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import client.AsyncClient;
+import coordinator.ShardMap;
+import paxos.RequestMethod;
+import server.KeyValueStoreServer;
+import service.RpcService;
+
+/**
+ * Load generator for the key-value store. Starts the five servers in this process or in a
+ * child process, or uses servers already running, fills the keyspace and then drives a mix of
+ * GET and PUT operations for a warm-up and a measured phase. Every setting is a bench.* system
+ * property, listed in the README; the paxos.* properties of this process are passed on to the
+ * servers it starts.
+ *
+ * Latency is measured from the intended start of an operation: with a target rate, an
+ * operation delayed by a slow predecessor is charged for the wait too, so stalls are not
+ * hidden by the closed loop (coordinated omission).
+ */
+public class Benchmark {
+
+  // inprocess, process or external
+  private static final String SERVERS = System.getProperty("bench.servers", "inprocess");
+  private static final String HOST = System.getProperty("bench.host", "localhost");
+  private static final String PORTS = System.getProperty("bench.ports", "5000,5001,5002,5003,5004");
+  // rmi for blocking calls from THREADS threads, async for THREADS requests in flight
+  private static final String CLIENT = System.getProperty("bench.client", "rmi");
+  private static final int THREADS = Integer.getInteger("bench.threads", 16);
+  private static final double READ_RATIO =
+          Double.parseDouble(System.getProperty("bench.readRatio", "0.5"));
+  private static final int KEYS = Integer.getInteger("bench.keys", 10000);
+  private static final String DISTRIBUTION = System.getProperty("bench.distribution", "uniform");
+  private static final double ZIPFIAN_THETA =
+          Double.parseDouble(System.getProperty("bench.zipfianTheta", "0.99"));
+  private static final int VALUE_BYTES = Integer.getInteger("bench.valueBytes", 100);
+  private static final long WARMUP_SECONDS = Long.getLong("bench.warmupSeconds", 5);
+  private static final long DURATION_SECONDS = Long.getLong("bench.durationSeconds", 30);
+  // 0 runs a closed loop, issuing the next operation as soon as the previous one completes
+  private static final long TARGET_OPS_PER_SECOND = Long.getLong("bench.targetOpsPerSecond", 0);
+  private static final boolean PRELOAD =
+          Boolean.parseBoolean(System.getProperty("bench.preload", "true"));
+  private static final String OUT_DIR = System.getProperty("bench.outDir", "bench-results");
+  private static final String NAME = System.getProperty("bench.name", "bench");
+
+  // Keys per multi-key PUT while filling the keyspace
+  private static final int PRELOAD_BATCH = 1000;
+  private static final int VALUE_POOL = 64;
+  private static final long STARTUP_TIMEOUT_MILLIS = 60000;
+  private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+  /**
+   * Measurements of one phase of the run
+   */
+  private static class Phase {
+    private final Map<RequestMethod, OperationStats> stats;
+
+    Phase() {
+      this.stats = new EnumMap<>(RequestMethod.class);
+      stats.put(RequestMethod.GET, new OperationStats());
+      stats.put(RequestMethod.PUT, new OperationStats());
+    }
+
+    void record(RequestMethod method, long startNanos, boolean failed) {
+      stats.get(method).record(System.nanoTime() - startNanos, failed);
+    }
+  }
+
+  /**
+   * Start times of the operations: now in a closed loop, or evenly spaced at the target rate
+   */
+  private static class Pacer {
+    private final long intervalNanos;
+    private final AtomicLong next;
+
+    Pacer(long opsPerSecond) {
+      this.intervalNanos = opsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / opsPerSecond : 0;
+      this.next = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Waits for the start of the next operation
+     * @return intended start time of the operation
+     */
+    long next() {
+      if (intervalNanos == 0) {
+        return System.nanoTime();
+      }
+      long start = next.getAndAdd(intervalNanos);
+      long wait;
+      while ((wait = start - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      return start;
+    }
+  }
+
+  private final List<Integer> ports;
+  private final KeyGenerator keys;
+  private final String[] values;
+  private final Pacer pacer;
+  private volatile Phase phase;
+  private volatile boolean running;
+
+  private Benchmark(List<Integer> ports) {
+    this.ports = ports;
+    this.keys = KeyGenerator.create(DISTRIBUTION, KEYS, ZIPFIAN_THETA);
+    this.values = new String[VALUE_POOL];
+    Random random = new Random(1);
+    for (int i = 0; i < VALUE_POOL; i++) {
+      StringBuilder value = new StringBuilder(VALUE_BYTES);
+      for (int j = 0; j < VALUE_BYTES; j++) {
+        value.append((char) ('a' + random.nextInt(26)));
+      }
+      values[i] = value.toString();
+    }
+    this.pacer = new Pacer(TARGET_OPS_PER_SECOND);
+    this.phase = new Phase();
+    this.running = true;
+  }
+
+  public static void main(String[] args) throws Exception {
+    PrintStream console = System.out;
+    Path outDir = Paths.get(OUT_DIR);
+    Files.createDirectories(outDir);
+    List<Integer> ports = new ArrayList<>();
+    for (String port : PORTS.split(",")) {
+      ports.add(Integer.parseInt(port.strip()));
+    }
+
+    Process process = null;
+    switch (SERVERS) {
+      case "inprocess":
+        // Server logs would drown the report
+        System.setOut(new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(outDir.resolve("servers.log").toFile())), false));
+        KeyValueStoreServer.main(ports.stream().map(String::valueOf).toArray(String[]::new));
+        break;
+      case "process":
+        process = startServers(ports, outDir.resolve("servers.log").toFile());
+        break;
+      case "external":
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown bench.servers mode: " + SERVERS);
+    }
+
+    try {
+      Registry registry = LocateRegistry.getRegistry(HOST);
+      List<RpcService> stubs = awaitServers(registry, ports.size());
+      Benchmark benchmark = new Benchmark(ports);
+      if (PRELOAD) {
+        console.println("Filling " + KEYS + " keys...");
+        benchmark.preload(stubs.get(0));
+      }
+      console.println("Running " + CLIENT + " clients for " + WARMUP_SECONDS + "s of warm-up and "
+              + DURATION_SECONDS + "s of measurement...");
+      BenchmarkReport report = benchmark.run(stubs);
+      report.print(console);
+      console.println("Results written to " + report.write(outDir));
+    } finally {
+      if (process != null) {
+        process.destroy();
+      }
+    }
+    // RMI threads of in-process servers would keep the JVM alive
+    System.exit(0);
+  }
+
+  private BenchmarkReport run(List<RpcService> stubs) throws Exception {
+    Thread driver;
+    if (CLIENT.equals("rmi")) {
+      driver = new Thread(() -> driveBlocking(stubs), "bench-driver");
+    } else if (CLIENT.equals("async")) {
+      AsyncClient client = new AsyncClient(HOST, ports);
+      driver = new Thread(() -> driveAsync(client), "bench-driver");
+    } else {
+      throw new IllegalArgumentException("Unknown bench.client: " + CLIENT);
+    }
+    driver.start();
+
+    Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+    Phase measured = new Phase();
+    phase = measured;
+    long start = System.nanoTime();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(DURATION_SECONDS));
+    // Operations still in flight are recorded to a phase that is thrown away
+    phase = new Phase();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    running = false;
+    driver.join();
+
+    return new BenchmarkReport(NAME, config(), seconds, measured.stats);
+  }
+
+  private void driveBlocking(List<RpcService> stubs) {
+    ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+    for (int thread = 0; thread < THREADS; thread++) {
+      RpcService stub = stubs.get(thread % stubs.size());
+      workers.execute(() -> {
+        Random random = ThreadLocalRandom.current();
+        while (running) {
+          long start = pacer.next();
+          RequestMethod method = nextMethod(random);
+          int key = keys.next(random);
+          boolean failed = false;
+          try {
+            if (method == RequestMethod.GET) {
+              stub.get(key);
+            } else {
+              stub.put(key, values[random.nextInt(VALUE_POOL)]);
+            }
+          } catch (RemoteException e) {
+            failed = true;
+          }
+          phase.record(method, start, failed);
+        }
+      });
+    }
+    workers.shutdown();
+    try {
+      workers.awaitTermination(DRAIN_TIMEOUT_SECONDS + DURATION_SECONDS + WARMUP_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void driveAsync(AsyncClient client) {
+    Semaphore inFlight = new Semaphore(THREADS);
+    Random random = ThreadLocalRandom.current();
+    try {
+      while (running) {
+        inFlight.acquire();
+        long start = pacer.next();
+        RequestMethod method = nextMethod(random);
+        int key = keys.next(random);
+        CompletableFuture<String> reply = method == RequestMethod.GET
+                ? client.get(key)
+                : client.put(key, values[random.nextInt(VALUE_POOL)]);
+        reply.whenComplete((result, error) -> {
+          phase.record(method, start, error != null);
+          inFlight.release();
+        });
+      }
+      inFlight.tryAcquire(THREADS, DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      client.close();
+    }
+  }
+
+  private RequestMethod nextMethod(Random random) {
+    return random.nextDouble() < READ_RATIO ? RequestMethod.GET : RequestMethod.PUT;
+  }
+
+  private void preload(RpcService stub) throws RemoteException {
+    // A MULTI-PUT must stay within one shard
+    ShardMap shardMap = new ShardMap();
+    Map<Integer, Map<Integer, String>> byShard = new LinkedHashMap<>();
+    for (int key = 0; key < KEYS; key++) {
+      Map<Integer, String> entries = byShard.computeIfAbsent(shardMap.shardOf(key), shard -> new LinkedHashMap<>());
+      entries.put(key, values[key % VALUE_POOL]);
+      if (entries.size() == PRELOAD_BATCH) {
+        stub.multiPut(entries);
+        entries.clear();
+      }
+    }
+    for (Map<Integer, String> entries : byShard.values()) {
+      if (!entries.isEmpty()) {
+        stub.multiPut(entries);
+      }
+    }
+  }
+
+  /**
+   * Settings of the run, for the report
+   */
+  private static Map<String, String> config() {
+    Map<String, String> config = new LinkedHashMap<>();
+    config.put("servers", SERVERS);
+    config.put("client", CLIENT);
+    config.put("threads", String.valueOf(THREADS));
+    config.put("readRatio", String.valueOf(READ_RATIO));
+    config.put("keys", String.valueOf(KEYS));
+    config.put("distribution", DISTRIBUTION);
+    if (DISTRIBUTION.equals("zipfian")) {
+      config.put("zipfianTheta", String.valueOf(ZIPFIAN_THETA));
+    }
+    config.put("valueBytes", String.valueOf(VALUE_BYTES));
+    config.put("warmupSeconds", String.valueOf(WARMUP_SECONDS));
+    config.put("durationSeconds", String.valueOf(DURATION_SECONDS));
+    config.put("targetOpsPerSecond", String.valueOf(TARGET_OPS_PER_SECOND));
+    for (String property : System.getProperties().stringPropertyNames()) {
+      if (property.startsWith("paxos.")) {
+        config.put(property, System.getProperty(property));
+      }
+    }
+    return config;
+  }
+
+  /**
+   * Starts the servers in a child JVM with the class path and paxos.* properties of this one
+   */
+  private static Process startServers(List<Integer> ports, File log) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    for (String property : System.getProperties().stringPropertyNames()) {
+      if (property.startsWith("paxos.")) {
+        command.add("-D" + property + "=" + System.getProperty(property));
+      }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(KeyValueStoreServer.class.getName());
+    for (int port : ports) {
+      command.add(String.valueOf(port));
+    }
+    Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(log)
+            .start();
+    Runtime.getRuntime().addShutdownHook(new Thread(process::destroy));
+    return process;
+  }
+
+  /**
+   * Looks up the client stub of every server, waiting for the servers to start
+   */
+  private static List<RpcService> awaitServers(Registry registry, int servers) throws Exception {
+    long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+    List<RpcService> stubs = new ArrayList<>();
+    while (stubs.size() < servers) {
+      try {
+        stubs.add((RpcService) registry.lookup("KeyValueStore" + (stubs.size() + 1)));
+      } catch (RemoteException | NotBoundException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw e;
+        }
+        Thread.sleep(200);
+      }
+    }
+    return stubs;
+  }
+}
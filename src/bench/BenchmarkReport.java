@@ -0,0 +1,167 @@
+package bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import metrics.LatencyHistogram;
+import paxos.RequestMethod;
+
+/**
+ * Results of a benchmark run: a summary on the console, a JSON file per run and one row per
+ * operation type appended to a CSV file shared by all runs, so runs of different releases can
+ * be compared.
+ */
+public class BenchmarkReport {
+
+  private static final String CSV_FILE = "results.csv";
+  private static final String CSV_HEADER = "timestamp,name,operation,count,errors,opsPerSecond,"
+          + "meanMicros,p50Micros,p90Micros,p99Micros,p999Micros,maxMicros";
+  private static final DateTimeFormatter FILE_TIME =
+          DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  private final String name;
+  private final Instant timestamp;
+  private final Map<String, String> config;
+  private final double seconds;
+  private final Map<String, OperationStats> operations;
+
+  /**
+   * @param name name of the benchmark, the same for the runs to compare
+   * @param config settings of the run
+   * @param seconds length of the measured phase
+   * @param stats measurements of each type of operation
+   */
+  public BenchmarkReport(String name, Map<String, String> config, double seconds,
+                         Map<RequestMethod, OperationStats> stats) {
+    this.name = name;
+    this.timestamp = Instant.now();
+    this.config = config;
+    this.seconds = seconds;
+    this.operations = new LinkedHashMap<>();
+    OperationStats total = new OperationStats();
+    for (Map.Entry<RequestMethod, OperationStats> entry : stats.entrySet()) {
+      operations.put(entry.getKey().name(), entry.getValue());
+      total.add(entry.getValue());
+    }
+    operations.put("ALL", total);
+  }
+
+  public void print(PrintStream out) {
+    out.printf(Locale.ROOT, "%-6s %10s %8s %12s %10s %10s %10s %10s %10s %10s%n", "op", "count",
+            "errors", "ops/s", "mean(us)", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)");
+    for (Map.Entry<String, OperationStats> entry : operations.entrySet()) {
+      LatencyHistogram latencies = entry.getValue().getLatencies();
+      out.printf(Locale.ROOT, "%-6s %10d %8d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+              entry.getKey(), latencies.getCount(), entry.getValue().getErrors(),
+              latencies.getCount() / seconds, micros(latencies.getMean()),
+              micros(latencies.getPercentile(50)), micros(latencies.getPercentile(90)),
+              micros(latencies.getPercentile(99)), micros(latencies.getPercentile(99.9)),
+              micros(latencies.getMax()));
+    }
+  }
+
+  /**
+   * Writes the JSON file of the run and appends it to the CSV file of the directory
+   * @param dir output directory, created if missing
+   * @return the JSON file
+   * @throws IOException if a file cannot be written
+   */
+  public Path write(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    Path json = dir.resolve(name + "-" + FILE_TIME.format(timestamp) + ".json");
+    Files.writeString(json, toJson(), StandardCharsets.UTF_8);
+
+    Path csv = dir.resolve(CSV_FILE);
+    StringBuilder rows = new StringBuilder();
+    if (!Files.exists(csv)) {
+      rows.append(CSV_HEADER).append('\n');
+    }
+    for (Map.Entry<String, OperationStats> entry : operations.entrySet()) {
+      LatencyHistogram latencies = entry.getValue().getLatencies();
+      rows.append(timestamp).append(',').append(name).append(',').append(entry.getKey())
+              .append(',').append(latencies.getCount())
+              .append(',').append(entry.getValue().getErrors())
+              .append(',').append(format(latencies.getCount() / seconds))
+              .append(',').append(format(micros(latencies.getMean())));
+      for (double percentile : PERCENTILES) {
+        rows.append(',').append(format(micros(latencies.getPercentile(percentile))));
+      }
+      rows.append(',').append(format(micros(latencies.getMax()))).append('\n');
+    }
+    Files.writeString(csv, rows, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    return json;
+  }
+
+  private String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"name\": ").append(quote(name)).append(",\n");
+    json.append("  \"timestamp\": ").append(quote(timestamp.toString())).append(",\n");
+    json.append("  \"seconds\": ").append(format(seconds)).append(",\n");
+    json.append("  \"config\": {");
+    String separator = "\n";
+    for (Map.Entry<String, String> entry : config.entrySet()) {
+      json.append(separator).append("    ").append(quote(entry.getKey())).append(": ")
+              .append(quote(entry.getValue()));
+      separator = ",\n";
+    }
+    json.append("\n  },\n");
+    json.append("  \"operations\": {");
+    separator = "\n";
+    for (Map.Entry<String, OperationStats> entry : operations.entrySet()) {
+      LatencyHistogram latencies = entry.getValue().getLatencies();
+      json.append(separator).append("    ").append(quote(entry.getKey())).append(": {\n");
+      json.append("      \"count\": ").append(latencies.getCount()).append(",\n");
+      json.append("      \"errors\": ").append(entry.getValue().getErrors()).append(",\n");
+      json.append("      \"opsPerSecond\": ").append(format(latencies.getCount() / seconds)).append(",\n");
+      json.append("      \"latencyMicros\": {\n");
+      json.append("        \"mean\": ").append(format(micros(latencies.getMean()))).append(",\n");
+      for (double percentile : PERCENTILES) {
+        json.append("        \"p").append(format(percentile).replace(".", "")).append("\": ")
+                .append(format(micros(latencies.getPercentile(percentile)))).append(",\n");
+      }
+      json.append("        \"max\": ").append(format(micros(latencies.getMax()))).append("\n");
+      json.append("      }\n    }");
+      separator = ",\n";
+    }
+    json.append("\n  }\n}\n");
+    return json.toString();
+  }
+
+  private static double micros(double nanos) {
+    return nanos / 1000;
+  }
+
+  private static String format(double value) {
+    if (value == Math.rint(value)) {
+      return Long.toString((long) value);
+    }
+    return String.format(Locale.ROOT, "%.1f", value);
+  }
+
+  private static String quote(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+}
@@ -0,0 +1,199 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+
+import coordinator.Coordinator;
+import coordinator.PaxosCoordinator;
+import paxos.Operation;
+import paxos.PaxosUtils;
+import paxos.Promise;
+import paxos.Proposal;
+import paxos.RequestMethod;
+import paxos.Status;
+import server.KeyValueStoreServer;
+import storage.StorageEngine;
+import transport.Frame;
+import transport.MessageCodec;
+
+/**
+ * Micro-benchmarks of the consensus and storage hot paths: creating proposals, encoding the
+ * Paxos messages with Java serialization (RMI) and with the binary codec, the acceptor
+ * handlers of a replica, applying learned slots to the store, the storage engine itself, and
+ * a whole Paxos round of the coordinator against five replicas called in memory. Settings are
+ * the bench.micro.* system properties; paxos.* properties apply to the code under test.
+ */
+public class HotPathBenchmarks {
+
+  private static final String OUT_DIR = System.getProperty("bench.outDir", "bench-results");
+  private static final String NAME = System.getProperty("bench.name", "bench");
+  private static final int KEYS = Integer.getInteger("bench.keys", 10000);
+  private static final int VALUE_BYTES = Integer.getInteger("bench.valueBytes", 100);
+  private static final int REPLICAS = 5;
+
+  public static void main(String[] args) throws Exception {
+    String value = "v".repeat(VALUE_BYTES);
+    Operation put = new Operation(RequestMethod.PUT, 1, value);
+    Proposal proposal = new Proposal(PaxosUtils.createProposal(put).getId(), 1, put);
+    Promise promise = new Promise(Status.PROMISED, proposal);
+
+    MicroBenchmark runner = new MicroBenchmark(NAME);
+
+    runner.run("paxos.createProposal", () -> () -> PaxosUtils.createProposal(put));
+
+    serialization(runner, "operation", put);
+    serialization(runner, "proposal", proposal);
+    serialization(runner, "promise", promise);
+
+    runner.run("codec.write.proposal", () -> {
+      Frame frame = new Frame(256);
+      return () -> {
+        frame.buffer().clear();
+        MessageCodec.writeProposal(frame, proposal);
+        return frame;
+      };
+    });
+    runner.run("codec.read.proposal", () -> {
+      ByteBuffer encoded = encode(frame -> MessageCodec.writeProposal(frame, proposal));
+      return () -> MessageCodec.readProposal(encoded.position(0));
+    });
+    runner.run("codec.write.promise", () -> {
+      Frame frame = new Frame(256);
+      return () -> {
+        frame.buffer().clear();
+        MessageCodec.writeReply(frame, promise);
+        return frame;
+      };
+    });
+    runner.run("codec.read.promise", () -> {
+      ByteBuffer encoded = encode(frame -> MessageCodec.writeReply(frame, promise));
+      return () -> MessageCodec.readReply(encoded.position(0));
+    });
+
+    // Replicas are built once per benchmark and shut down after it, not once per iteration.
+    // One ballot per prepare, as competing proposers would send
+    Coordinator preparingCoordinator = new Coordinator();
+    KeyValueStoreServer preparing = replica(preparingCoordinator, 1);
+    try {
+      runner.run("acceptor.prepare", () -> () -> preparing.prepare(PaxosUtils.createProposal(put)));
+    } finally {
+      shutdown(preparingCoordinator, preparing);
+    }
+    // A stable leader's ballot over consecutive slots
+    Coordinator acceptingCoordinator = new Coordinator();
+    KeyValueStoreServer accepting = replica(acceptingCoordinator, 1);
+    try {
+      long ballot = PaxosUtils.createProposal(put).getId();
+      accepting.prepare(new Proposal(ballot, put));
+      int[] slot = {0};
+      runner.run("acceptor.accept", () -> () -> accepting.accept(new Proposal(ballot, slot[0]++, put)));
+    } finally {
+      shutdown(acceptingCoordinator, accepting);
+    }
+    Coordinator learningCoordinator = new Coordinator();
+    KeyValueStoreServer learning = replica(learningCoordinator, 1);
+    try {
+      long ballot = PaxosUtils.createProposal(put).getId();
+      int[] slot = {0};
+      runner.run("acceptor.learn", () -> () -> {
+        int next = slot[0]++;
+        return learning.learn(new Proposal(ballot, next, new Operation(RequestMethod.PUT, next % KEYS, value)));
+      });
+    } finally {
+      shutdown(learningCoordinator, learning);
+    }
+
+    runner.run("storage.put", () -> {
+      StorageEngine store = StorageEngine.create();
+      int[] key = {0};
+      return () -> {
+        store.put(key[0]++ % KEYS, value);
+        return store;
+      };
+    });
+    runner.run("storage.get", () -> {
+      StorageEngine store = StorageEngine.create();
+      for (int key = 0; key < KEYS; key++) {
+        store.put(key, value);
+      }
+      int[] key = {0};
+      return () -> store.get(key[0]++ % KEYS);
+    });
+
+    coordinatorRound(runner, "coordinator.executeOperation.basic", false, put);
+    coordinatorRound(runner, "coordinator.executeOperation.multiPaxos", true, put);
+
+    runner.finish(Paths.get(OUT_DIR));
+  }
+
+  private interface Encoder {
+    void write(Frame frame);
+  }
+
+  private static ByteBuffer encode(Encoder encoder) {
+    Frame frame = new Frame(256);
+    encoder.write(frame);
+    return frame.buffer().flip();
+  }
+
+  /**
+   * Java serialization of a message, as RMI marshals arguments and replies
+   */
+  private static void serialization(MicroBenchmark runner, String name, Serializable message)
+          throws Exception {
+    runner.run("java.serialize." + name, () -> () -> serialize(message));
+    runner.run("java.deserialize." + name, () -> {
+      byte[] bytes = serialize(message);
+      return () -> new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+    });
+  }
+
+  private static byte[] serialize(Serializable message) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(message);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * A whole round of the coordinator: prepare unless it leads already, accept and learn
+   */
+  private static void coordinatorRound(MicroBenchmark runner, String name, boolean multiPaxos,
+                                       Operation operation) throws Exception {
+    Coordinator coordinator = new Coordinator(0, 0, multiPaxos, 16);
+    KeyValueStoreServer[] replicas = new KeyValueStoreServer[REPLICAS];
+    try {
+      for (int id = 1; id <= REPLICAS; id++) {
+        replicas[id - 1] = replica(coordinator, id);
+        coordinator.registerLocalServer(replicas[id - 1]);
+      }
+      runner.run(name, () -> () -> coordinator.executeOperation(PaxosUtils.createProposal(operation)));
+    } finally {
+      shutdown(coordinator, replicas);
+    }
+  }
+
+  private static KeyValueStoreServer replica(PaxosCoordinator coordinator, int id) throws RemoteException {
+    // The port only names the replica in logs; nothing listens on it
+    return new KeyValueStoreServer(coordinator, id, 0, 5000 + id);
+  }
+
+  /**
+   * Stops a coordinator and the replicas built with it
+   */
+  private static void shutdown(Coordinator coordinator, KeyValueStoreServer... replicas) {
+    coordinator.shutdown();
+    for (KeyValueStoreServer replica : replicas) {
+      if (replica != null) {
+        replica.shutdown();
+      }
+    }
+  }
+}
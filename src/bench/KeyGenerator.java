@@ -0,0 +1,36 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * Picks the key of the next operation of a workload
+ */
+public interface KeyGenerator {
+
+  /**
+   * @param random random source of the calling thread
+   * @return key from 0 inclusive to the number of keys exclusive
+   */
+  int next(Random random);
+
+  /**
+   * Creates the generator of a key distribution
+   * @param distribution uniform or zipfian
+   * @param keys number of keys
+   * @param theta skew of the zipfian distribution, between 0 and 1 exclusive
+   * @return key generator
+   */
+  static KeyGenerator create(String distribution, int keys, double theta) {
+    if (keys < 1) {
+      throw new IllegalArgumentException("Number of keys must be positive: " + keys);
+    }
+    switch (distribution) {
+      case "uniform":
+        return random -> random.nextInt(keys);
+      case "zipfian":
+        return new ZipfianKeyGenerator(keys, theta);
+      default:
+        throw new IllegalArgumentException("Unknown key distribution: " + distribution);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Harness for micro-benchmarks, run the way JMH runs them: warm-up iterations to let the JIT
+ * compile the code, then measured iterations of a fixed length, each on a state built fresh
+ * by the benchmark's setup. Besides throughput, it reports how many bytes every operation
+ * allocates, counted over all threads of the process so work handed to pools is included.
+ * Output of the code under test is discarded from the start of the suite, since threads it
+ * leaves behind may still be writing after their benchmark has ended.
+ */
+public class MicroBenchmark {
+
+  private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.micro.warmupIterations", 3);
+  private static final int ITERATIONS = Integer.getInteger("bench.micro.iterations", 5);
+  private static final long ITERATION_MILLIS = Long.getLong("bench.micro.iterationMillis", 1000);
+  private static final Pattern INCLUDE = Pattern.compile(System.getProperty("bench.micro.include", ".*"));
+
+  private static final String CSV_FILE = "micro-results.csv";
+  private static final String CSV_HEADER =
+          "timestamp,name,benchmark,opsPerSecond,opsPerSecondStdDev,nanosPerOp,bytesPerOp,allocMBPerSecond";
+  // A batch of operations is only grown while it takes less than this, so slow ones stay precise
+  private static final long MAX_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /**
+   * The operation being measured
+   */
+  public interface Body {
+    /**
+     * @return a value depending on the work done, so the JIT cannot drop the work
+     * @throws Exception if the operation fails, which stops the benchmark
+     */
+    Object run() throws Exception;
+  }
+
+  /**
+   * Builds the state of one iteration, outside the measured time
+   */
+  public interface Setup {
+    Body create() throws Exception;
+  }
+
+  /**
+   * Measurements of one benchmark
+   */
+  private static class Result {
+    private final String benchmark;
+    private final double opsPerSecond;
+    private final double opsPerSecondStdDev;
+    private final double bytesPerOp;
+
+    Result(String benchmark, double opsPerSecond, double opsPerSecondStdDev, double bytesPerOp) {
+      this.benchmark = benchmark;
+      this.opsPerSecond = opsPerSecond;
+      this.opsPerSecondStdDev = opsPerSecondStdDev;
+      this.bytesPerOp = bytesPerOp;
+    }
+
+    double nanosPerOp() {
+      return 1e9 / opsPerSecond;
+    }
+
+    double allocMBPerSecond() {
+      return bytesPerOp * opsPerSecond / (1024 * 1024);
+    }
+  }
+
+  // Last result of the operation, kept so that it stays observable
+  private Object sink;
+  private volatile int blackhole;
+  private final String name;
+  private final List<Result> results;
+  // Standard output of the process, which results are printed to
+  private final PrintStream console;
+
+  /**
+   * Starts a suite and prints the header of its results
+   * @param name name of the suite in the result files
+   */
+  public MicroBenchmark(String name) {
+    this.name = name;
+    this.results = new ArrayList<>();
+    this.console = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    console.printf(Locale.ROOT, "%-40s %14s %12s %12s %12s %12s%n", "benchmark", "ops/s", "+-stddev",
+            "ns/op", "B/op", "alloc MB/s");
+  }
+
+  /**
+   * Runs a benchmark, unless bench.micro.include leaves it out
+   * @param benchmark name of the benchmark
+   * @param setup builds the operation of each iteration
+   * @throws Exception if the setup or the operation fails
+   */
+  public void run(String benchmark, Setup setup) throws Exception {
+    if (!INCLUDE.matcher(benchmark).find()) {
+      return;
+    }
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      iteration(setup.create());
+    }
+    double[] throughput = new double[ITERATIONS];
+    long operations = 0;
+    long bytes = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      long[] measured = iteration(setup.create());
+      operations += measured[0];
+      bytes += measured[2];
+      throughput[i] = measured[0] * 1e9 / measured[1];
+    }
+    double mean = 0;
+    for (double value : throughput) {
+      mean += value / ITERATIONS;
+    }
+    double variance = 0;
+    for (double value : throughput) {
+      variance += (value - mean) * (value - mean) / Math.max(1, ITERATIONS - 1);
+    }
+    Result result = new Result(benchmark, mean, Math.sqrt(variance), (double) bytes / operations);
+    results.add(result);
+    console.printf(Locale.ROOT, "%-40s %14.1f %12.1f %12.1f %12.1f %12.1f%n", result.benchmark,
+            result.opsPerSecond, result.opsPerSecondStdDev, result.nanosPerOp(), result.bytesPerOp,
+            result.allocMBPerSecond());
+  }
+
+  /**
+   * Ends the suite, appending its results to the CSV file of the directory
+   * @param dir output directory, created if missing
+   * @throws IOException if the file cannot be written
+   */
+  public void finish(Path dir) throws IOException {
+    System.setOut(console);
+    Files.createDirectories(dir);
+    Path csv = dir.resolve(CSV_FILE);
+    StringBuilder rows = new StringBuilder();
+    if (!Files.exists(csv)) {
+      rows.append(CSV_HEADER).append('\n');
+    }
+    Instant timestamp = Instant.now();
+    for (Result result : results) {
+      rows.append(String.format(Locale.ROOT, "%s,%s,%s,%.1f,%.1f,%.1f,%.1f,%.1f%n", timestamp, name,
+              result.benchmark, result.opsPerSecond, result.opsPerSecondStdDev, result.nanosPerOp(),
+              result.bytesPerOp, result.allocMBPerSecond()));
+    }
+    Files.writeString(csv, rows, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    console.println("Results appended to " + csv);
+  }
+
+  /**
+   * Runs the operation for one iteration
+   * @return operations, elapsed nanoseconds and allocated bytes
+   */
+  private long[] iteration(Body body) throws Exception {
+    long operations = 0;
+    int batch = 1;
+    long bytesBefore = allocatedBytes();
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(ITERATION_MILLIS);
+    long now = start;
+    while (now < deadline) {
+      long batchStart = now;
+      for (int i = 0; i < batch; i++) {
+        sink = body.run();
+      }
+      operations += batch;
+      now = System.nanoTime();
+      if (now - batchStart < MAX_BATCH_NANOS) {
+        batch *= 2;
+      }
+    }
+    long bytes = allocatedBytes() - bytesBefore;
+    blackhole = System.identityHashCode(sink);
+    return new long[] {operations, now - start, bytes};
+  }
+
+  /**
+   * Bytes allocated so far by the live threads of the process
+   */
+  private static long allocatedBytes() {
+    long total = 0;
+    for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+      if (bytes > 0) {
+        total += bytes;
+      }
+    }
+    return total;
+  }
+}
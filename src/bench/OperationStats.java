@@ -0,0 +1,47 @@
+package bench;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import metrics.LatencyHistogram;
+
+/**
+ * Latencies and failures of one type of operation during a phase of a benchmark
+ */
+public class OperationStats {
+
+  private final LatencyHistogram latencies;
+  private final LongAdder errors;
+
+  public OperationStats() {
+    this.latencies = new LatencyHistogram();
+    this.errors = new LongAdder();
+  }
+
+  /**
+   * @param nanos time from the intended start of the operation to its reply
+   * @param failed whether the operation failed instead of getting a reply
+   */
+  public void record(long nanos, boolean failed) {
+    if (failed) {
+      errors.increment();
+    } else {
+      latencies.record(nanos);
+    }
+  }
+
+  /**
+   * Latencies of the operations that got a reply
+   */
+  public LatencyHistogram getLatencies() {
+    return latencies;
+  }
+
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  public void add(OperationStats other) {
+    latencies.add(other.latencies);
+    errors.add(other.errors.sum());
+  }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * Zipfian key distribution, drawn with the method of Gray et al., "Quickly Generating
+ * Billion-Record Synthetic Databases", as YCSB does. The rank of a key is hashed into the
+ * keyspace so the popular keys are spread over it instead of being the lowest ones, which
+ * would all land in the first shard with the range partitioner.
+ */
+class ZipfianKeyGenerator implements KeyGenerator {
+
+  private final int keys;
+  private final double theta;
+  private final double alpha;
+  private final double zetaN;
+  private final double eta;
+
+  ZipfianKeyGenerator(int keys, double theta) {
+    if (theta <= 0 || theta >= 1) {
+      throw new IllegalArgumentException("Zipfian theta must be between 0 and 1: " + theta);
+    }
+    this.keys = keys;
+    this.theta = theta;
+    this.alpha = 1 / (1 - theta);
+    this.zetaN = zeta(keys, theta);
+    this.eta = (1 - Math.pow(2.0 / keys, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+  }
+
+  @Override
+  public int next(Random random) {
+    double u = random.nextDouble();
+    double uz = u * zetaN;
+    long rank;
+    if (uz < 1) {
+      rank = 0;
+    } else if (uz < 1 + Math.pow(0.5, theta)) {
+      rank = 1;
+    } else {
+      rank = Math.min(keys - 1, (long) (keys * Math.pow(eta * u - eta + 1, alpha)));
+    }
+    return (int) Math.floorMod(scramble(rank), (long) keys);
+  }
+
+  private static double zeta(long n, double theta) {
+    double sum = 0;
+    for (long i = 1; i <= n; i++) {
+      sum += 1 / Math.pow(i, theta);
+    }
+    return sum;
+  }
+
+  /**
+   * FNV-1a hash of a rank
+   */
+  private static long scramble(long rank) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < Long.BYTES; i++) {
+      hash ^= (rank >>> (i * 8)) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
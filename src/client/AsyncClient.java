@@ -0,0 +1,276 @@
+package client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import coordinator.ClusterConfig;
+import coordinator.ShardMap;
+import transport.MessageCodec;
+import transport.NioEventLoop;
+import transport.Transports;
+
+/**
+ * Non-blocking client of the key-value store over the binary transport. Requests from any
+ * number of threads are pipelined over one connection per server and matched to their replies
+ * by request id, so a single thread can keep thousands of operations in flight. Reads are
+ * spread over the servers in turn. Writes go to the leader of the key's shard, which is asked
+ * for once and again after its connection fails; servers name the leader by its server id.
+ * Connections are opened without blocking, and the returned futures complete on a small pool
+ * of callback threads, so callers' continuations never run on the selector thread.
+ */
+public class AsyncClient implements NioEventLoop.FrameHandler, AutoCloseable {
+
+  // How long a request waits for its reply before its future fails
+  private static final long TIMEOUT_MILLIS = Long.getLong("paxos.client.timeoutMillis", 10000);
+  // Threads completing the futures handed to callers, off the selector thread
+  private static final int CALLBACK_THREADS = Integer.getInteger("paxos.client.callbackThreads", 2);
+
+  /**
+   * A request waiting for its reply
+   */
+  private static class Pending {
+    private final NioEventLoop.Connection connection;
+    private final CompletableFuture<Object> reply;
+
+    Pending(NioEventLoop.Connection connection) {
+      this.connection = connection;
+      this.reply = new CompletableFuture<>();
+    }
+  }
+
+  private final List<InetSocketAddress> servers;
+  // Server id of each server, in the order of servers
+  private final int[] ids;
+  private final ShardMap shardMap;
+  private final NioEventLoop loop;
+  private final ExecutorService callbacks;
+  private final NioEventLoop.Connection[] connections;
+  private final Map<Integer, Pending> pending;
+  private final AtomicInteger nextRequestId;
+  private final AtomicInteger nextReader;
+  // Index of the server taking the writes of each shard, once known
+  private final AtomicReferenceArray<CompletableFuture<Integer>> leaders;
+
+  /**
+   * Connects to servers started with the given RMI ports, partitioned by the paxos.shards
+   * properties of this process
+   * @param host host of the servers
+   * @param rmiPorts RMI ports of the servers; servers are numbered from 1 in this order
+   * @throws IOException if the event loop cannot be started
+   */
+  public AsyncClient(String host, List<Integer> rmiPorts) throws IOException {
+    this(cluster(host, rmiPorts), new ShardMap());
+  }
+
+  /**
+   * @param cluster servers of the cluster, whose binary transport listens next to their RMI port
+   * @param shardMap partitioning of the keyspace, the same as the servers'
+   * @throws IOException if the event loop cannot be started
+   */
+  public AsyncClient(ClusterConfig cluster, ShardMap shardMap) throws IOException {
+    List<ClusterConfig.Member> members = cluster.getMembers();
+    this.servers = new ArrayList<>();
+    this.ids = new int[members.size()];
+    for (int i = 0; i < members.size(); i++) {
+      ClusterConfig.Member member = members.get(i);
+      servers.add(new InetSocketAddress(member.getHost(), Transports.binaryPort(member.getPort())));
+      ids[i] = member.getId();
+    }
+    this.shardMap = shardMap;
+    this.loop = new NioEventLoop("async-client");
+    this.callbacks = Executors.newFixedThreadPool(CALLBACK_THREADS, runnable -> {
+      Thread thread = new Thread(runnable, "async-client-callback");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.connections = new NioEventLoop.Connection[servers.size()];
+    this.pending = new ConcurrentHashMap<>();
+    this.nextRequestId = new AtomicInteger();
+    this.nextReader = new AtomicInteger();
+    this.leaders = new AtomicReferenceArray<>(shardMap.getShards());
+  }
+
+  /**
+   * Linearizable read of a key
+   * @param key integer key
+   * @return future of the value, or of the server's message if the key is absent
+   */
+  public CompletableFuture<String> get(int key) {
+    int shard = shardMap.shardOf(key);
+    int server = Math.floorMod(nextReader.getAndIncrement(), servers.size());
+    return deliver(send(server, shard, MessageCodec.GET, key, null));
+  }
+
+  public CompletableFuture<String> put(int key, String value) {
+    return write(MessageCodec.PUT, key, value);
+  }
+
+  public CompletableFuture<String> delete(int key) {
+    return write(MessageCodec.DELETE, key, null);
+  }
+
+  /**
+   * Requests in flight, waiting for their replies
+   * @return number of requests
+   */
+  public int inFlight() {
+    return pending.size();
+  }
+
+  @Override
+  public void close() {
+    for (int server = 0; server < connections.length; server++) {
+      NioEventLoop.Connection connection;
+      synchronized (this) {
+        connection = connections[server];
+      }
+      if (connection != null) {
+        connection.close();
+      }
+    }
+    loop.close();
+    callbacks.shutdown();
+  }
+
+  @Override
+  public void onFrame(NioEventLoop.Connection connection, int requestId, byte type, ByteBuffer payload)
+          throws IOException {
+    Object reply = MessageCodec.readReply(payload);
+    Pending waiting = pending.remove(requestId);
+    if (waiting != null) {
+      waiting.reply.complete(reply);
+    }
+  }
+
+  @Override
+  public void onClose(NioEventLoop.Connection closed) {
+    for (Map.Entry<Integer, Pending> entry : pending.entrySet()) {
+      if (entry.getValue().connection == closed && pending.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().reply.completeExceptionally(new IOException("Connection to server closed"));
+      }
+    }
+    // Ask again for the leaders of the shards that were written through this connection
+    for (int shard = 0; shard < leaders.length(); shard++) {
+      CompletableFuture<Integer> leader = leaders.get(shard);
+      if (leader != null && leader.isDone() && !leader.isCompletedExceptionally()
+              && connectionOf(leader.join()) == closed) {
+        leaders.compareAndSet(shard, leader, null);
+      }
+    }
+  }
+
+  private CompletableFuture<String> write(byte type, int key, String value) {
+    int shard = shardMap.shardOf(key);
+    return deliver(leaderOf(shard).thenCompose(server -> send(server, shard, type, key, value)));
+  }
+
+  /**
+   * Completes the caller's future on a callback thread, failures included
+   */
+  private CompletableFuture<String> deliver(CompletableFuture<Object> reply) {
+    return reply.handleAsync((value, error) -> {
+      if (error != null) {
+        throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+      }
+      return result(value);
+    }, callbacks);
+  }
+
+  /**
+   * Server taking the writes of a shard, asked for from the next server in turn if unknown
+   */
+  private CompletableFuture<Integer> leaderOf(int shard) {
+    CompletableFuture<Integer> leader = leaders.get(shard);
+    if (leader != null && !leader.isCompletedExceptionally()) {
+      return leader;
+    }
+    CompletableFuture<Integer> lookup = new CompletableFuture<>();
+    if (!leaders.compareAndSet(shard, leader, lookup)) {
+      return leaderOf(shard);
+    }
+    int asked = Math.floorMod(nextReader.getAndIncrement(), servers.size());
+    send(asked, shard, MessageCodec.LEADER, 0, null).whenComplete((reply, error) -> {
+      if (error != null) {
+        lookup.completeExceptionally(error);
+        return;
+      }
+      int server = asked;
+      for (int i = 0; i < ids.length; i++) {
+        if (reply != null && ids[i] == (Integer) reply) {
+          server = i;
+        }
+      }
+      lookup.complete(server);
+    });
+    return lookup;
+  }
+
+  private CompletableFuture<Object> send(int server, int shard, byte type, int key, String value) {
+    NioEventLoop.Connection connection;
+    try {
+      connection = connect(server);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    int requestId = nextRequestId.incrementAndGet();
+    Pending request = new Pending(connection);
+    pending.put(requestId, request);
+    try {
+      connection.send(requestId, type, frame -> {
+        frame.putInt(shard);
+        if (type != MessageCodec.LEADER) {
+          frame.putInt(key);
+          MessageCodec.writeString(frame, value);
+        }
+      });
+    } catch (IOException e) {
+      pending.remove(requestId);
+      return CompletableFuture.failedFuture(e);
+    }
+    request.reply.orTimeout(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+            .whenComplete((reply, error) -> pending.remove(requestId));
+    return request.reply;
+  }
+
+  private synchronized NioEventLoop.Connection connect(int server) throws IOException {
+    NioEventLoop.Connection connection = connections[server];
+    if (connection == null || !connection.isOpen()) {
+      connection = loop.connect(servers.get(server), this);
+      connections[server] = connection;
+    }
+    return connection;
+  }
+
+  private synchronized NioEventLoop.Connection connectionOf(int server) {
+    return connections[server];
+  }
+
+  private static String result(Object reply) {
+    if (reply == null) {
+      // The server replies with nothing when the request failed on its side
+      throw new IllegalStateException("Request failed on the server");
+    }
+    return (String) reply;
+  }
+
+  private static ClusterConfig cluster(String host, List<Integer> rmiPorts) {
+    List<ClusterConfig.Member> members = new ArrayList<>();
+    for (int i = 0; i < rmiPorts.size(); i++) {
+      members.add(new ClusterConfig.Member(i + 1, host, rmiPorts.get(i), Registry.REGISTRY_PORT));
+    }
+    return new ClusterConfig(members);
+  }
+}
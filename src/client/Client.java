@@ -1,6 +1,7 @@
 package client;
 
 import java.io.DataInputStream;
+import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -9,16 +10,23 @@ import java.sql.SQLOutput;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import coordinator.ClusterConfig;
+import coordinator.ShardMap;
 import service.RpcService;
+import service.ScanResult;
 
 /**
  * Client class for RPC communication
  */
 public class Client {
 
+  // Entries requested per page of a scan
+  private static final int SCAN_PAGE = 100;
+
   /**
    * Private method to parse user input for operations on server
    * @param input String input from user
@@ -64,6 +72,20 @@ public class Client {
       } else {
         return null;
       }
+    } else if (method.compareTo("SCA") == 0) {
+      int openBracketIdx = input.indexOf("(");
+      int commaIdx = input.indexOf(",");
+      int closeBracketIdx = input.indexOf(")");
+      if (toParse.substring(0, 4).toUpperCase().compareTo("SCAN") != 0
+              || openBracketIdx < 0 || commaIdx < openBracketIdx || closeBracketIdx < commaIdx) {
+        return null;
+      }
+      try {
+        key = Integer.parseInt(input.substring(openBracketIdx + 1, commaIdx).strip());
+        value = Integer.toString(Integer.parseInt(input.substring(commaIdx + 1, closeBracketIdx).strip()));
+      } catch (NumberFormatException nfe) {
+        return null;
+      }
     }
 
     results.add(method);
@@ -81,10 +103,16 @@ public class Client {
     int[] keys = {1,2,3,4,5,6,7,8,9,10};
     String[] names = {"abc", "bcd", "cde", "edf", "dfg", "ghi", "jkl", "mno", "pqr", "stu"};
 
+    // One multi-key PUT per shard instead of a consensus round per key
+    ShardMap shardMap = new ShardMap();
+    Map<Integer, Map<Integer, String>> byShard = new LinkedHashMap<>();
     for(int i = 0; i < 10; i++){
+      byShard.computeIfAbsent(shardMap.shardOf(keys[i]), shard -> new LinkedHashMap<>()).put(keys[i], names[i]);
+    }
+    for (Map<Integer, String> entries : byShard.values()) {
       try {
         System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-                + " Server response: " + stub.put(keys[i], names[i]));
+                + " Server response: " + stub.multiPut(entries));
       } catch (RemoteException error) {
         System.err.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
                 + " Client exception " + error.toString());
@@ -92,14 +120,69 @@ public class Client {
     }
   }
 
+  /**
+   * Private method to print the entries of a key range, one page at a time
+   * @param stub RpcService object for RPC communication
+   * @param from first key, inclusive
+   * @param to last key, exclusive
+   * @throws RemoteException if the scan fails
+   */
+  private static void printScan(RpcService stub, int from, int to) throws RemoteException {
+    ScanResult page = stub.scan(from, to, SCAN_PAGE);
+    while (page != null) {
+      for (int i = 0; i < page.getKeys().length; i++) {
+        System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
+                + " Server response: " + page.getKeys()[i] + " = " + page.getValues()[i]);
+      }
+      if (page.isLast()) {
+        return;
+      }
+      page = stub.scanNext(page.getCursor(), SCAN_PAGE);
+    }
+    System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
+            + " Scan expired before it was read to the end");
+  }
+
+  /**
+   * Private method to look up a server in its registry
+   * @param cluster servers of the cluster, or null if they share the registry on this host
+   * @param server server number
+   * @return RpcService object of the server
+   */
+  private static RpcService lookup(ClusterConfig cluster, int server) throws RemoteException, NotBoundException {
+    Registry registry;
+    if (cluster == null) {
+      registry = LocateRegistry.getRegistry(null);
+    } else {
+      ClusterConfig.Member member = cluster.getMember(server);
+      registry = LocateRegistry.getRegistry(member.getHost(), member.getRegistryPort());
+    }
+    // Server name in registry: KeyValueStore1, KeyValueStore2, etc.
+    return (RpcService) registry.lookup("KeyValueStore" + server);
+  }
+
+  /**
+   * Private method to find the server leading the shard of a key, so that a write goes to it
+   * directly instead of being forwarded by the server it was sent to
+   * @param cluster servers of the cluster, or null if they share the registry on this host
+   * @param stub RpcService object of the connected server
+   * @param key key of the write
+   * @return stub of the leader, or the connected server if no leader is known
+   */
+  private static RpcService leaderOf(ClusterConfig cluster, RpcService stub, int key)
+          throws RemoteException, NotBoundException {
+    int leader = stub.getLeader(key);
+    return leader < 0 ? stub : lookup(cluster, leader);
+  }
+
   public static void main(String[] args) {
-    Registry registry = null;
     try {
-      // Locates the registry
-      registry = LocateRegistry.getRegistry(null);
+      // Servers started from a cluster file each have their own registry
+      ClusterConfig cluster = args.length > 0 ? ClusterConfig.load(Paths.get(args[0])) : null;
+      int first = cluster == null ? 1 : cluster.getMembers().get(0).getId();
 
       // Lookup the server remote object in the registry
-      RpcService stub = (RpcService) registry.lookup("KeyValueStore1");
+      RpcService stub = lookup(cluster, first);
 
       // Pre-populate key-value store and perform 5 PUT operations
       prePopulate(stub);
@@ -116,14 +199,14 @@ public class Client {
       // Take input for which server to connect to
       DataInputStream input = new DataInputStream(System.in);
       String line = "";
-      System.out.println("Enter the server you want to connect to (1-5):");
+      System.out.println("Enter the server you want to connect to (1-5, or 0 to send writes to the leader):");
       line = input.readLine();
       int server = Integer.parseInt(line);
+      boolean followLeader = server == 0;
 
-      // Server name in registry: KeyValueStore1, KeyValueStore2, etc.
-      stub = (RpcService) registry.lookup("KeyValueStore" + server);
+      stub = lookup(cluster, followLeader ? first : server);
       System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-              + " Connected to server " + server);
+              + (followLeader ? " Sending writes to the leader" : " Connected to server " + server));
       while(true){
         line = input.readLine();
         List<String> results = parseInput(line);
@@ -142,11 +225,16 @@ public class Client {
             break;
           case "PUT":
             System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-                    + " Server response: " + stub.put(key, value));
+                    + " Server response: "
+                    + (followLeader ? leaderOf(cluster, stub, key) : stub).put(key, value));
             break;
           case "DEL":
             System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-                    + " Server response: " + stub.delete(key));
+                    + " Server response: "
+                    + (followLeader ? leaderOf(cluster, stub, key) : stub).delete(key));
+            break;
+          case "SCA":
+            printScan(stub, key, Integer.parseInt(value));
             break;
           default:
             System.out.println("Invalid Input.");
@@ -0,0 +1,345 @@
+package coordinator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import logging.Logger;
+import metrics.Counter;
+import metrics.LatencyHistogram;
+import metrics.MetricGroup;
+import metrics.Metrics;
+import server.PaxosServer;
+import transport.NioEventLoop;
+import transport.NioPaxosClient;
+import transport.Transports;
+
+/**
+ * Membership and stub cache of the acceptors. Stubs are resolved from the registry of each
+ * acceptor's server once and reused for every operation. Failed calls mark an acceptor as suspect and then down; down
+ * acceptors are left out of the phases and re-resolved by a background heartbeat until they
+ * answer again. Calls, failures and reply latency of each acceptor are exported as metrics.
+ */
+public class AcceptorDirectory {
+
+  private static final Logger LOG = Logger.get(AcceptorDirectory.class);
+
+  /**
+   * Health of an acceptor as seen by this coordinator
+   */
+  public enum Health {
+    UP,
+    SUSPECT,
+    DOWN
+  }
+
+  /**
+   * A cluster member and its cached stub
+   */
+  private static class Member {
+    private final int id;
+    private final String name;
+    // Where the registry the acceptor is bound in runs, unless local
+    private final String host;
+    private final int registryPort;
+    private volatile PaxosServer stub;
+    private volatile int port;
+    private volatile Health health;
+    private int consecutiveFailures;
+    // Called directly rather than looked up in the registry
+    private final boolean local;
+    // Phase calls to the acceptor, as seen by this coordinator
+    private final Counter calls;
+    private final Counter failures;
+    private final LatencyHistogram latency;
+
+    Member(ClusterConfig.Member server, String owner, int shard) {
+      this(server.getId(), server.getHost(), server.getRegistryPort(), owner, shard, null, 0, Health.SUSPECT,
+              false);
+    }
+
+    Member(int id, String owner, int shard, PaxosServer stub, int port) {
+      this(id, null, -1, owner, shard, stub, port, Health.UP, true);
+    }
+
+    private Member(int id, String host, int registryPort, String owner, int shard, PaxosServer stub, int port,
+                   Health health, boolean local) {
+      this.id = id;
+      this.name = ShardMap.acceptorName(id, shard);
+      this.host = host;
+      this.registryPort = registryPort;
+      this.stub = stub;
+      this.port = port;
+      // Not resolved yet unless local
+      this.health = health;
+      this.consecutiveFailures = 0;
+      this.local = local;
+      MetricGroup metrics = Metrics.group("Acceptor", "server", owner, "shard", String.valueOf(shard),
+              "name", name);
+      this.calls = metrics.counter("calls");
+      this.failures = metrics.counter("failures");
+      this.latency = metrics.histogram("latency");
+      metrics.gauge("errorRate", () -> calls.get() == 0 ? 0 : (double) failures.get() / calls.get());
+      metrics.gauge("health", () -> this.health.ordinal());
+    }
+  }
+
+  // Consecutive failed calls after which an acceptor is considered down
+  private static final int FAILURES_BEFORE_DOWN = Integer.getInteger("paxos.membership.failuresBeforeDown", 3);
+  private static final long HEARTBEAT_MILLIS = Long.getLong("paxos.membership.heartbeatMillis", 1000);
+
+  private final List<Member> members;
+  // Server whose coordinator uses this directory, labelling its metrics
+  private final String owner;
+  // Shard of the acceptors, which the binary transport needs to reach the right replica
+  private final int shard;
+  private final ScheduledExecutorService heartbeat;
+  private NioEventLoop clientLoop;
+
+  public AcceptorDirectory(int owner, int shard) {
+    this.members = new CopyOnWriteArrayList<>();
+    this.owner = String.valueOf(owner);
+    this.shard = shard;
+    this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "acceptor-heartbeat-" + shard);
+      thread.setDaemon(true);
+      return thread;
+    });
+    heartbeat.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Adds the acceptor of a server, resolved on first use
+   * @param server server of the cluster
+   */
+  public void add(ClusterConfig.Member server) {
+    members.add(new Member(server, owner, shard));
+  }
+
+  /**
+   * Adds a member running in this process, which is called directly instead of through a
+   * stub from the registry
+   * @param id server number of the acceptor
+   * @param acceptor the acceptor itself
+   * @throws RemoteException if the port of the acceptor cannot be read
+   */
+  public void addLocal(int id, PaxosServer acceptor) throws RemoteException {
+    members.add(new Member(id, owner, shard, acceptor, acceptor.getPort()));
+  }
+
+  public int size() {
+    return members.size();
+  }
+
+  /**
+   * Number of acceptors that makes a majority of all members, whether they are up or not
+   * @return quorum size
+   */
+  public int quorum() {
+    return Math.floorDiv(members.size(), 2) + 1;
+  }
+
+  /**
+   * Stubs of every member that is not down, resolving members that have no stub yet
+   * @return list of acceptor stubs
+   */
+  public List<PaxosServer> getLive() {
+    List<PaxosServer> live = new ArrayList<>();
+    for (Member member : members) {
+      if (member.stub == null && member.health != Health.DOWN) {
+        synchronized (member) {
+          // Another operation may have resolved it in the meantime
+          if (member.stub == null) {
+            resolve(member);
+          }
+        }
+      }
+      if (member.stub != null && member.health != Health.DOWN) {
+        live.add(member.stub);
+      }
+    }
+    return live;
+  }
+
+  /**
+   * Stub of the acceptor of one server, resolving it if it has no stub yet
+   * @param id server number
+   * @return the stub, or null if the server is not a member or is down
+   */
+  public PaxosServer get(int id) {
+    for (Member member : members) {
+      if (member.id != id) {
+        continue;
+      }
+      if (member.stub == null && member.health != Health.DOWN) {
+        synchronized (member) {
+          if (member.stub == null) {
+            resolve(member);
+          }
+        }
+      }
+      return member.health == Health.DOWN ? null : member.stub;
+    }
+    return null;
+  }
+
+  /**
+   * Server number of the first member in id order that is not down
+   * @return server number, or -1 if every member is down
+   */
+  public int firstLive() {
+    for (Member member : members) {
+      if (member.health != Health.DOWN) {
+        return member.id;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Updates the health and call metrics of the acceptors from the outcome of a phase
+   * @param result result of the phase
+   */
+  public void report(PhaseResult<?> result) {
+    for (Member member : members) {
+      PaxosServer stub = member.stub;
+      if (stub == null) {
+        continue;
+      }
+      if (result.getReplies().containsKey(stub)) {
+        member.calls.increment();
+        member.latency.record(result.getLatency(stub));
+        markUp(member);
+      } else if (result.getFailed().contains(stub)) {
+        member.calls.increment();
+        member.failures.increment();
+        markFailed(member);
+      }
+    }
+  }
+
+  /**
+   * Health of every member, by registry name
+   * @return map of registry name to health
+   */
+  public Map<String, Health> getHealth() {
+    Map<String, Health> health = new LinkedHashMap<>();
+    for (Member member : members) {
+      health.put(member.name, member.health);
+    }
+    return health;
+  }
+
+  /**
+   * Cached port of an acceptor, so that logging does not cost a remote call
+   * @param stub stub returned by getLive
+   * @return port of the acceptor, or -1 if it is not a member
+   */
+  public int portOf(PaxosServer stub) {
+    for (Member member : members) {
+      if (member.stub == stub) {
+        return member.port;
+      }
+    }
+    return -1;
+  }
+
+  private void heartbeat() {
+    for (Member member : members) {
+      if (member.health == Health.UP) {
+        continue;
+      }
+      if ((member.health == Health.DOWN || member.stub == null) && !member.local) {
+        synchronized (member) {
+          resolve(member);
+        }
+        continue;
+      }
+      try {
+        member.stub.getPort();
+        markUp(member);
+      } catch (RemoteException e) {
+        markFailed(member);
+      }
+    }
+  }
+
+  private void resolve(Member member) {
+    try {
+      // Locates the registry and looks up the server remote object
+      Registry registry = LocateRegistry.getRegistry(member.host, member.registryPort);
+      PaxosServer stub = (PaxosServer) registry.lookup(member.name);
+      int port = stub.getPort();
+      if (member.stub instanceof NioPaxosClient) {
+        ((NioPaxosClient) member.stub).close();
+      }
+      member.port = port;
+      member.stub = Transports.BINARY ? binaryClient(stub, member.host, port) : stub;
+      markUp(member);
+    } catch (NotBoundException | RemoteException e) {
+      if (member.health != Health.DOWN) {
+        LOG.warn("Server {} is down", member.name);
+      }
+      member.health = Health.DOWN;
+    }
+  }
+
+  private synchronized void markUp(Member member) {
+    // A single failed call is common; only coming back from down is worth reporting
+    if (member.health == Health.DOWN) {
+      LOG.info("Server {} is {}", member.name, Health.UP);
+    } else if (member.health == Health.SUSPECT) {
+      LOG.debug("Server {} is {}", member.name, Health.UP);
+    }
+    member.consecutiveFailures = 0;
+    member.health = Health.UP;
+  }
+
+  private synchronized void markFailed(Member member) {
+    member.consecutiveFailures += 1;
+    Health health = member.consecutiveFailures >= FAILURES_BEFORE_DOWN ? Health.DOWN : Health.SUSPECT;
+    if (health == Health.DOWN && member.health != Health.DOWN) {
+      LOG.warn("Server {} is {}", member.name, health);
+    } else if (health != member.health) {
+      LOG.debug("Server {} is {}", member.name, health);
+    }
+    member.health = health;
+  }
+
+  /**
+   * Stops the heartbeat and closes the connections of the binary transport
+   */
+  public synchronized void shutdown() {
+    heartbeat.shutdownNow();
+    if (clientLoop != null) {
+      clientLoop.close();
+    }
+  }
+
+  /**
+   * Binary transport client for an acceptor; all proposals share its connection
+   */
+  private synchronized PaxosServer binaryClient(PaxosServer stub, String host, int port) throws RemoteException {
+    if (clientLoop == null) {
+      try {
+        clientLoop = new NioEventLoop("nio-coordinator-" + shard);
+      } catch (IOException e) {
+        throw new RemoteException("Could not start the binary transport", e);
+      }
+    }
+    return new NioPaxosClient(stub, shard,
+            new InetSocketAddress(host, Transports.binaryPort(port)), clientLoop);
+  }
+}
@@ -0,0 +1,144 @@
+package coordinator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Servers of the cluster and where to reach them. A cluster file lists one server per line as
+ * server.&lt;id&gt;=&lt;host&gt;:&lt;port&gt;; each server then runs as its own process with a
+ * registry on its RMI port. Servers started together in one process share the registry on the
+ * default port instead.
+ */
+public class ClusterConfig {
+
+  private static final String SERVER_PREFIX = "server.";
+
+  /**
+   * A server of the cluster
+   */
+  public static class Member {
+    private final int id;
+    private final String host;
+    private final int port;
+    private final int registryPort;
+
+    public Member(int id, String host, int port, int registryPort) {
+      this.id = id;
+      this.host = host;
+      this.port = port;
+      this.registryPort = registryPort;
+    }
+
+    /**
+     * Server number, as in KeyValueStore1; also the proposer id of the server's ballots
+     */
+    public int getId() {
+      return id;
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    /**
+     * RMI port the server's remote objects are exported on
+     */
+    public int getPort() {
+      return port;
+    }
+
+    /**
+     * Port of the registry the server's remote objects are bound in
+     */
+    public int getRegistryPort() {
+      return registryPort;
+    }
+  }
+
+  private final List<Member> members;
+
+  public ClusterConfig(List<Member> members) {
+    if (members.isEmpty()) {
+      throw new IllegalArgumentException("A cluster needs at least one server");
+    }
+    List<Member> sorted = new ArrayList<>(members);
+    sorted.sort(Comparator.comparingInt(Member::getId));
+    this.members = Collections.unmodifiableList(sorted);
+  }
+
+  /**
+   * Reads a cluster file
+   * @param file path of the file
+   * @return the cluster it describes
+   * @throws IOException if the file cannot be read
+   * @throws IllegalArgumentException if an entry is malformed
+   */
+  public static ClusterConfig load(Path file) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(file)) {
+      properties.load(reader);
+    }
+    List<Member> members = new ArrayList<>();
+    for (String name : properties.stringPropertyNames()) {
+      if (!name.startsWith(SERVER_PREFIX)) {
+        continue;
+      }
+      String address = properties.getProperty(name).strip();
+      int colon = address.lastIndexOf(':');
+      try {
+        int id = Integer.parseInt(name.substring(SERVER_PREFIX.length()));
+        int port = Integer.parseInt(address.substring(colon + 1));
+        if (colon <= 0 || id < 1 || id > 0xFFFF) {
+          throw new IllegalArgumentException("Invalid server " + name + "=" + address + " in " + file);
+        }
+        members.add(new Member(id, address.substring(0, colon), port, port));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid server " + name + "=" + address + " in " + file, e);
+      }
+    }
+    return new ClusterConfig(members);
+  }
+
+  /**
+   * Cluster of servers on this host that share the registry on the default port
+   * @param ports RMI port of each server; servers are numbered from 1 in this order
+   * @return the cluster
+   */
+  public static ClusterConfig local(List<Integer> ports) {
+    List<Member> members = new ArrayList<>();
+    for (int i = 0; i < ports.size(); i++) {
+      members.add(new Member(i + 1, "localhost", ports.get(i), Registry.REGISTRY_PORT));
+    }
+    return new ClusterConfig(members);
+  }
+
+  /**
+   * Servers in id order
+   */
+  public List<Member> getMembers() {
+    return members;
+  }
+
+  /**
+   * A server by id
+   * @param id server number
+   * @return the server
+   * @throws IllegalArgumentException if the cluster has no such server
+   */
+  public Member getMember(int id) {
+    for (Member member : members) {
+      if (member.getId() == id) {
+        return member;
+      }
+    }
+    throw new IllegalArgumentException("No server " + id + " in the cluster");
+  }
+}
@@ -0,0 +1,164 @@
+package coordinator;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import paxos.Operation;
+
+import static paxos.PaxosUtils.splitResults;
+
+/**
+ * Batching stage in front of a proposer. Write operations are collected for up to a
+ * configured delay or number of operations and proposed as a single batched value, which
+ * replicas apply atomically in one log slot. Every caller still gets its own result. No more
+ * batches are proposed at once than the coordinator's window holds; while the window is full,
+ * operations keep queueing and go out together in the next batch.
+ */
+public class CommandBatcher {
+
+  /**
+   * Proposes a collected batch, through the coordinator or by forwarding it to the leader
+   */
+  public interface Proposer {
+    String propose(Operation operation) throws RemoteException;
+  }
+
+  /**
+   * An operation waiting to be proposed together with the caller's result
+   */
+  private static class Pending {
+    private final Operation operation;
+    private final CompletableFuture<String> result;
+
+    Pending(Operation operation) {
+      this.operation = operation;
+      this.result = new CompletableFuture<>();
+    }
+  }
+
+  private final Proposer proposer;
+  private final int maxOps;
+  private final long maxDelayNanos;
+  private final LinkedBlockingQueue<Pending> queue;
+  // Batches proposed and not yet decided
+  private final Semaphore inFlight;
+  // Proposes collected batches; several batches run at once inside the coordinator's window
+  private final ExecutorService proposers;
+  private final Thread collector;
+
+  public CommandBatcher(Proposer proposer) {
+    this(proposer, Integer.getInteger("paxos.batch.maxOps", 64),
+            Long.getLong("paxos.batch.maxDelayMicros", 200), Integer.getInteger("paxos.window", 16));
+  }
+
+  public CommandBatcher(Proposer proposer, int maxOps, long maxDelayMicros, int maxInFlight) {
+    this.proposer = proposer;
+    this.maxOps = maxOps;
+    this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+    this.queue = new LinkedBlockingQueue<>();
+    this.inFlight = new Semaphore(maxInFlight);
+    this.proposers = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "paxos-batch-proposer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.collector = new Thread(this::collect, "paxos-batch-collector");
+    collector.setDaemon(true);
+    collector.start();
+  }
+
+  /**
+   * Queues an operation for the next batch and waits for its result
+   * @param operation operation to propose
+   * @return result of the operation
+   * @throws RemoteException if the batch could not be proposed
+   */
+  public String submit(Operation operation) throws RemoteException {
+    Pending pending = new Pending(operation);
+    queue.add(pending);
+    try {
+      return pending.result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while waiting for the batch", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RemoteException) {
+        throw (RemoteException) e.getCause();
+      }
+      throw new RemoteException("Batch could not be proposed", e.getCause());
+    }
+  }
+
+  /**
+   * Stops collecting batches; operations still queued are not proposed
+   */
+  public void shutdown() {
+    collector.interrupt();
+    proposers.shutdown();
+  }
+
+  private void collect() {
+    while (true) {
+      List<Pending> batch = new ArrayList<>();
+      try {
+        inFlight.acquire();
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxOps) {
+          long remaining = deadline - System.nanoTime();
+          Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        Pending queued;
+        while ((queued = queue.poll()) != null) {
+          batch.add(queued);
+        }
+        for (Pending pending : batch) {
+          pending.result.completeExceptionally(e);
+        }
+        return;
+      }
+      proposers.execute(() -> propose(batch));
+    }
+  }
+
+  private void propose(List<Pending> batch) {
+    try {
+      if (batch.size() == 1) {
+        Pending pending = batch.get(0);
+        pending.result.complete(proposer.propose(pending.operation));
+        return;
+      }
+
+      List<Operation> operations = new ArrayList<>();
+      for (Pending pending : batch) {
+        operations.add(pending.operation);
+      }
+      String result = proposer.propose(new Operation(operations));
+      List<String> results = splitResults(result);
+      boolean chosen = results != null && results.size() == batch.size();
+      for (int i = 0; i < batch.size(); i++) {
+        // A batch that was not chosen yields a single failure message for every operation
+        batch.get(i).result.complete(chosen ? results.get(i) : result);
+      }
+    } catch (Exception e) {
+      for (Pending pending : batch) {
+        pending.result.completeExceptionally(e);
+      }
+    } finally {
+      inFlight.release();
+    }
+  }
+}
@@ -1,134 +1,869 @@
 package coordinator;
 
 import java.io.Serializable;
-import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import logging.Logger;
+import metrics.Counter;
+import metrics.LatencyHistogram;
+import metrics.MetricGroup;
+import metrics.Metrics;
+import paxos.BallotGenerator;
+import paxos.Operation;
 import paxos.Promise;
 import paxos.Proposal;
+import paxos.RequestMethod;
 import paxos.Status;
 import server.PaxosServer;
 
 public class Coordinator implements PaxosCoordinator, Serializable {
 
-  List<PaxosServer> dataStores;
+  private static final Logger LOG = Logger.get(Coordinator.class);
+
+  // Deadline for each of the prepare, accept and learn phases
+  private static final long PHASE_TIMEOUT_MILLIS = Long.getLong("paxos.phaseTimeoutMillis", 5000);
+  // Ballot value meaning this coordinator does not currently hold leadership
+  private static final long NO_BALLOT = -1;
+  // Result of a proposal for which no value could be chosen
+  private static final String CONSENSUS_FAILED = "Consensus not reached";
+  // Rounds tried for a slot before giving up, and the bounds of the random pause between them
+  private static final int MAX_ATTEMPTS = Integer.getInteger("paxos.retry.maxAttempts", 5);
+  private static final long BACKOFF_MILLIS = Long.getLong("paxos.retry.backoffMillis", 5);
+  private static final long MAX_BACKOFF_MILLIS = Long.getLong("paxos.retry.maxBackoffMillis", 200);
+  // Least time a slot or a leader election is retried for, longer than the lease another leader
+  // may hold on the acceptors, during which every other proposer is refused
+  private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(
+          Long.getLong("paxos.retry.minMillis", 2 * Long.getLong("paxos.leaseMillis", 2000)));
+  // Slots a proposal may lose to other proposers' values before giving up; each one lost is a
+  // command of another proposer committed, so this bound is generous
+  private static final int MAX_SLOTS = Integer.getInteger("paxos.retry.maxSlots", 64);
+  // Leader lease, shortened by the maximum clock drift between leader and acceptors
+  private static final long LEASE_NANOS = TimeUnit.MILLISECONDS.toNanos(
+          Long.getLong("paxos.leaseMillis", 2000) - Long.getLong("paxos.maxClockDriftMillis", 200));
+  // How often a Multi-Paxos leader renews its lease while it has no reads to do it, and how
+  // often abandoned slots are filled again
+  private static final long HEARTBEAT_MILLIS = Long.getLong("paxos.leader.heartbeatMillis", 500);
+
+  private final transient PhaseEngine phaseEngine;
+  // Multi-Paxos mode: prepare once as leader, then only run accept for each command
+  private final boolean multiPaxos;
+  private volatile long leaderBallot;
+  private volatile long leaseExpiresAt;
+  // Read index confirmed by the quorum that granted the lease; slots above it are only committed
+  // through this coordinator while the lease lasts
+  private volatile int leaseReadIndex;
+  // Cached acceptor stubs and their health
+  private final transient AcceptorDirectory directory;
+  // Log slots with proposals in flight
+  private final transient ProposalWindow window;
+  // Renews the lease of a leader and fills abandoned slots
+  private final transient ScheduledExecutorService maintenance;
+  // Server whose replica proposes through this coordinator, and the request ids it hands out
+  private final int serverId;
+  // Ballots of this coordinator; their proposer id is the server id, so a ballot names its leader
+  private final transient BallotGenerator ballots;
+  private final transient AtomicLong requestSequence;
+  // Shard whose Paxos group this coordinator drives
+  private final int shard;
+  // Whether the log left behind by a previous run has been recovered
+  private volatile boolean recovered;
+  // Read index rounds shared by concurrent reads, guarded by readIndexLock
+  private final transient Object readIndexLock;
+  // Serializes leader elections without holding the coordinator's monitor, which stepDown needs
+  // while an election waits for the slots in flight to be learned
+  private final transient Object electionLock;
+  private long readRoundsStarted;
+  private long readRoundsDone;
+  private boolean readRoundRunning;
+  private int lastReadIndex;
+  private RemoteException lastReadIndexError;
+  // Time of each phase until its quorum was reached, and of the waits around the phases
+  private final transient LatencyHistogram operationLatency;
+  private final transient LatencyHistogram slotWait;
+  private final transient LatencyHistogram prepareLatency;
+  private final transient LatencyHistogram acceptLatency;
+  private final transient LatencyHistogram learnOrderWait;
+  private final transient LatencyHistogram learnLatency;
+  private final transient LatencyHistogram readIndexLatency;
+  private final transient Counter proposals;
+  private final transient Counter rejectedPromises;
+  private final transient LatencyHistogram backoffLatency;
+  private final transient Counter retries;
+  private final transient Counter adoptedValues;
+  private final transient Counter consensusFailures;
+  private final transient Counter leaderElections;
+  private final transient Counter leaseReads;
 
   public Coordinator() {
-    this.dataStores = new ArrayList<>();
+    this(0, 0);
+  }
+
+  /**
+   * @param serverId server whose replica proposes through this coordinator
+   * @param shard shard whose Paxos group this coordinator drives
+   */
+  public Coordinator(int serverId, int shard) {
+    this(serverId, shard, Boolean.getBoolean("paxos.multiPaxos"), Integer.getInteger("paxos.window", 16));
+  }
+
+  public Coordinator(int serverId, int shard, boolean multiPaxos, int windowSize) {
+    this.serverId = serverId;
+    this.ballots = new BallotGenerator(serverId);
+    // Starts from the clock so that requests of a restarted server do not reuse ids
+    this.requestSequence = new AtomicLong(System.currentTimeMillis() << 20);
+    this.shard = shard;
+    this.phaseEngine = new PhaseEngine();
+    this.multiPaxos = multiPaxos;
+    this.leaderBallot = NO_BALLOT;
+    this.leaseExpiresAt = System.nanoTime();
+    this.leaseReadIndex = -1;
+    this.window = new ProposalWindow(windowSize);
+    this.directory = new AcceptorDirectory(serverId, shard);
+    this.recovered = false;
+    this.readIndexLock = new Object();
+    this.electionLock = new Object();
+    this.readRoundsStarted = 0;
+    this.readRoundsDone = 0;
+    this.readRoundRunning = false;
+
+    MetricGroup metrics = Metrics.group("Coordinator", "server", String.valueOf(serverId), "shard",
+            String.valueOf(shard));
+    this.operationLatency = metrics.histogram("operation");
+    this.slotWait = metrics.histogram("slotWait");
+    this.prepareLatency = metrics.histogram("prepare");
+    this.acceptLatency = metrics.histogram("accept");
+    this.learnOrderWait = metrics.histogram("learnOrderWait");
+    this.learnLatency = metrics.histogram("learn");
+    this.readIndexLatency = metrics.histogram("readIndex");
+    this.proposals = metrics.counter("proposals");
+    this.rejectedPromises = metrics.counter("rejectedPromises");
+    this.retries = metrics.counter("retries");
+    this.adoptedValues = metrics.counter("adoptedValues");
+    this.backoffLatency = metrics.histogram("backoff");
+    this.consensusFailures = metrics.counter("consensusFailures");
+    this.leaderElections = metrics.counter("leaderElections");
+    this.leaseReads = metrics.counter("leaseReads");
+    metrics.gauge("inFlight", window::getInFlight);
+    metrics.gauge("committedSlot", window::getCommitted);
+    metrics.gauge("leader", () -> leaderBallot == NO_BALLOT ? 0 : 1);
+    metrics.gauge("liveAcceptors", () -> directory.getHealth().values().stream()
+            .filter(health -> health == AcceptorDirectory.Health.UP).count());
+
+    this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "coordinator-" + serverId + "-" + shard);
+      thread.setDaemon(true);
+      return thread;
+    });
+    maintenance.scheduleWithFixedDelay(this::fillAbandoned, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS,
+            TimeUnit.MILLISECONDS);
+    if (multiPaxos) {
+      // Acceptors that stop hearing from the leader let its lease run out, after which another
+      // replica can win leadership
+      maintenance.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS,
+              TimeUnit.MILLISECONDS);
+    }
   }
 
-  public void registerNewServer(PaxosServer server) {
-    dataStores.add(server);
+  /**
+   * Adds the acceptor of a server of the cluster, looked up in the server's registry as
+   * KeyValueStore1-shard0, KeyValueStore2-shard0, etc.
+   * @param server server of the cluster
+   */
+  public void addAcceptor(ClusterConfig.Member server) {
+    directory.add(server);
+  }
+
+  /**
+   * Registers an acceptor that is called directly instead of through RMI, such as an
+   * in-memory acceptor of a benchmark. Replies are then the acceptor's own objects, not copies.
+   * Acceptors are numbered from 1 in the order they are registered.
+   * @param server acceptor in this process
+   * @throws RemoteException if the acceptor cannot be reached
+   */
+  public void registerLocalServer(PaxosServer server) throws RemoteException {
+    directory.addLocal(directory.size() + 1, server);
+  }
+
+  /**
+   * Stops the threads of the coordinator: its maintenance, the acceptor heartbeat and the
+   * phase calls. Operations still running fail.
+   */
+  public void shutdown() {
+    maintenance.shutdownNow();
+    directory.shutdown();
+    phaseEngine.shutdown();
+  }
+
+  @Override
+  public List<PaxosServer> getReplicas() {
+    return directory.getLive();
+  }
+
+  @Override
+  public PaxosServer getReplica(int serverId) {
+    return directory.get(serverId);
+  }
+
+  @Override
+  public int quorum() {
+    return directory.quorum();
+  }
+
+  @Override
+  public boolean isLeader() {
+    return leaderBallot != NO_BALLOT;
+  }
+
+  @Override
+  public int getFirstLive() {
+    return directory.firstLive();
+  }
+
+  @Override
+  public void observeBallot(long ballot) {
+    ballots.observe(ballot);
+  }
+
+  /**
+   * Health of every acceptor as seen by this coordinator
+   * @return map of registry name to health
+   */
+  public Map<String, AcceptorDirectory.Health> getAcceptorHealth() {
+    return directory.getHealth();
   }
 
   @Override
   public String executeOperation(Proposal proposal) throws RemoteException {
-    Registry registry = null;
-    List<PaxosServer> acceptors = new ArrayList<>();
-    // List to store servers that are down
-    List<PaxosServer> failedServers = new ArrayList<>();
-    // Locates the registry
-    registry = LocateRegistry.getRegistry(null);
+    long startedAt = System.nanoTime();
+    proposals.increment();
+    try {
+      return execute(proposal);
+    } finally {
+      operationLatency.record(System.nanoTime() - startedAt);
+    }
+  }
 
+  private String execute(Proposal proposal) throws RemoteException {
+    if (!recovered) {
+      recover(directory.getLive(), directory.quorum());
+    }
+
+    // Every retry of the request carries the same id, by which its value is told from others
+    Operation operation = proposal.getOperation();
+    if (!operation.hasRequestId()) {
+      operation.setRequestId(serverId, requestSequence.incrementAndGet());
+    }
 
-    int i = 1;
-    for(PaxosServer server: dataStores){
-      try{
-        // Lookup the server remote object in the registry
-        PaxosServer acceptor = (PaxosServer) registry.lookup("KeyValueStore" + i);
-        acceptors.add(acceptor);
-        i += 1;
-      } catch (NotBoundException e) {
-        System.out.println("Server at port " + server.getPort() + " is down");
+    // A proposal that loses its slot to another proposer's value moves on to the next slot
+    int lostSlots = 0;
+    int failedElections = 0;
+    long startedAt = System.nanoTime();
+    for (int attempt = 1; ; attempt++) {
+      // Ballots come from this coordinator, and straggling calls may still be sending the
+      // proposal of the previous slot
+      proposal = createProposal(operation);
+      List<PaxosServer> acceptors = directory.getLive();
+      int half = directory.quorum();
+      long ballot = NO_BALLOT;
+      if (multiPaxos) {
+        ballot = leaderBallot;
+        if (ballot == NO_BALLOT) {
+          ballot = becomeLeader(acceptors, half);
+          if (ballot == NO_BALLOT) {
+            failedElections += 1;
+            if (!mayRetry(failedElections + 1, startedAt)) {
+              consensusFailures.increment();
+              return CONSENSUS_FAILED;
+            }
+            backOff(failedElections);
+            continue;
+          }
+        }
+        proposal.setId(ballot);
+      }
+
+      // Up to the window size of proposals run their rounds concurrently
+      int slot;
+      long waitStartedAt = System.nanoTime();
+      try {
+        slot = window.open();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("Interrupted while waiting for the proposal window", e);
+      }
+      slotWait.record(System.nanoTime() - waitStartedAt);
+      String result;
+      try {
+        proposal.setSlot(slot);
+        if (multiPaxos) {
+          result = executeAsLeader(acceptors, half, proposal, ballot);
+        } else {
+          result = decide(acceptors, half, proposal, false);
+        }
+        // The constant itself, so a stored value that reads the same is not mistaken for it
+        if (result == CONSENSUS_FAILED) {
+          if (fill(directory.getLive(), half, slot)) {
+            // The slot holds a NOOP, so this request was not chosen in it
+            consensusFailures.increment();
+            return CONSENSUS_FAILED;
+          }
+          throw new RemoteException("Slot " + slot + " could not be decided; the outcome is unknown");
+        }
+      } catch (RemoteException e) {
+        // Such as a value chosen that no replica learned; deciding the slot again learns it
+        window.abandon(slot);
+        throw e;
+      } finally {
+        window.close(slot);
       }
+      if (result != null) {
+        return result;
+      }
+      lostSlots += 1;
+      if (lostSlots >= MAX_SLOTS) {
+        consensusFailures.increment();
+        return CONSENSUS_FAILED;
+      }
+      // Another proposer is using the slots from here on, so skip to the end of the log once
+      // it had a chance to move on
+      backOff(lostSlots);
+      try {
+        window.advance(readIndex());
+      } catch (RemoteException e) {
+        LOG.debug("Coordinator of shard {}: {}", shard, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Multi-Paxos path. The prepare phase is only run when this coordinator does not hold
+   * leadership, and then covers every slot from the next free one onwards; each command after
+   * that reuses the leader ballot and skips straight to accept. Leadership is dropped as soon
+   * as the accept quorum fails, which happens once a higher ballot has been promised, and the
+   * slot is then decided like a single-decree proposal.
+   * @return result of the proposal, or null if its slot was taken by another value
+   */
+  private String executeAsLeader(List<PaxosServer> acceptors, int half, Proposal proposal,
+                                 long ballot) throws RemoteException {
+    String result = acceptAndLearn(acceptors, acceptors, half, proposal);
+    if (result == null) {
+      stepDown(ballot);
+      return decide(acceptors, half, proposal, true);
+    }
+    return result;
+  }
+
+  /**
+   * A Multi-Paxos leader holding a valid lease knows acceptors refuse every other ballot, so
+   * nothing was committed since the lease was granted except through this coordinator, and its
+   * own commit index is returned without a round-trip. Otherwise a single
+   * heartbeat round asks a quorum of acceptors for the highest slot they accepted, which also
+   * renews the lease of a leader. Concurrent reads share rounds: a read is answered by the
+   * first round that started after it arrived, so one round serves every read queued behind
+   * the round in flight.
+   */
+  @Override
+  public int readIndex() throws RemoteException {
+    long ballot = leaderBallot;
+    if (ballot != NO_BALLOT && System.nanoTime() - leaseExpiresAt < 0) {
+      leaseReads.increment();
+      return Math.max(leaseReadIndex, window.getCommitted());
     }
+    return confirmReadIndex();
+  }
 
-    int half = Math.floorDiv(acceptors.size(), 2) + 1;
-    int numPromised = 0;
+  /**
+   * Renews the lease of a Multi-Paxos leader once half of it has run out, which is what keeps
+   * the acceptors from accepting another leader
+   */
+  private void heartbeat() {
+    if (leaderBallot == NO_BALLOT || leaseExpiresAt - System.nanoTime() > LEASE_NANOS / 2) {
+      return;
+    }
+    try {
+      confirmReadIndex();
+    } catch (RemoteException | RuntimeException e) {
+      LOG.debug("Coordinator of shard {}: lease not renewed: {}", shard, e.getMessage());
+    }
+  }
 
-    for(PaxosServer acceptor: acceptors){
-      try{
-        Promise promise = acceptor.prepare(proposal);
-        if(promise == null){
-          System.out.println("Server at port " + acceptor.getPort() + " is down");
-          failedServers.add(acceptor);
+  /**
+   * Runs a read index round, or waits for the next one to start if one is in flight
+   */
+  private int confirmReadIndex() throws RemoteException {
+    long round;
+    synchronized (readIndexLock) {
+      long needed = readRoundsStarted + 1;
+      while (readRoundsDone < needed && readRoundRunning) {
+        try {
+          readIndexLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RemoteException("Interrupted while waiting for the read index", e);
         }
-        else if(promise.getStatus() == Status.PROMISED || promise.getStatus() == Status.ACCEPTED){
-          numPromised += 1;
-          System.out.println("Server at port " + acceptor.getPort() + " has PROMISED proposal " +
-                  proposal.getOperation().getMethod() + "(" + proposal.getOperation().getKey() +
-                  "," + proposal.getOperation().getValue() + ")");
+      }
+      if (readRoundsDone >= needed) {
+        if (lastReadIndexError != null) {
+          throw lastReadIndexError;
         }
-        else{
-          System.out.println("Server at port " + acceptor.getPort() + " has REJECTED proposal " +
-                  proposal.getOperation().getMethod() + "(" + proposal.getOperation().getKey() +
-                  "," + proposal.getOperation().getValue() + ")");
+        return lastReadIndex;
+      }
+      readRoundRunning = true;
+      round = ++readRoundsStarted;
+    }
+
+    int readIndex = -1;
+    RemoteException error = new RemoteException("Read index round failed");
+    try {
+      readIndex = readIndexRound();
+      error = null;
+    } catch (RemoteException e) {
+      error = e;
+    } finally {
+      synchronized (readIndexLock) {
+        readRoundsDone = round;
+        lastReadIndex = readIndex;
+        lastReadIndexError = error;
+        readRoundRunning = false;
+        readIndexLock.notifyAll();
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+    return readIndex;
+  }
+
+  /**
+   * Asks a quorum of acceptors for the highest slot they accepted
+   * @return read index
+   * @throws RemoteException if no quorum confirmed the read index
+   */
+  private int readIndexRound() throws RemoteException {
+    long ballot = leaderBallot;
+    List<PaxosServer> acceptors = directory.getLive();
+    int half = directory.quorum();
+    long sentAt = System.nanoTime();
+    PhaseResult<Integer> replies = phaseEngine.run(acceptors, acceptor -> acceptor.readIndex(ballot),
+            index -> index != PaxosServer.SUPERSEDED, half, PHASE_TIMEOUT_MILLIS, true);
+    readIndexLatency.record(System.nanoTime() - sentAt);
+    directory.report(replies);
+    if (!replies.isQuorumReached()) {
+      if (ballot != NO_BALLOT && replies.getReplies().containsValue(PaxosServer.SUPERSEDED)) {
+        stepDown(ballot);
+      }
+      throw new RemoteException("Read index was not confirmed by a quorum");
+    }
+
+    int readIndex = window.getCommitted();
+    for (int index : replies.getReplies().values()) {
+      readIndex = Math.max(readIndex, index);
+    }
+    if (ballot != NO_BALLOT && ballot == leaderBallot) {
+      // Values another proposer got chosen before the lease was granted are covered by this index
+      leaseReadIndex = Math.max(leaseReadIndex, readIndex);
+      leaseExpiresAt = sentAt + LEASE_NANOS;
+    }
+    return readIndex;
+  }
+
+  /**
+   * Picks up the log where the previous run left it once the replicas have recovered from
+   * their write-ahead logs. Replicas behind the most advanced one learn the slots they miss,
+   * slots accepted but never learned are decided again, and new proposals start after them.
+   */
+  private synchronized void recover(List<PaxosServer> acceptors, int half) throws RemoteException {
+    if (recovered) {
+      return;
+    }
+    PaxosServer mostAdvanced = null;
+    int applied = -1;
+    int accepted = -1;
+    // Acceptors that went down since they were last seen are left to catch up on their own
+    for (PaxosServer server : acceptors) {
+      try {
+        int lastApplied = server.getLastApplied();
+        if (lastApplied > applied) {
+          applied = lastApplied;
+          mostAdvanced = server;
         }
-      } catch (Exception e) {
-        System.out.println("Server at port " + acceptor.getPort() + " is NOT RESPONDING to the proposal " +
-                proposal.getOperation().getMethod() + "(" + proposal.getOperation().getKey() +
-                "," + proposal.getOperation().getValue() + ")");
+        Integer highestAccepted = server.readIndex(NO_BALLOT);
+        if (highestAccepted != null) {
+          accepted = Math.max(accepted, highestAccepted);
+        }
+      } catch (RemoteException e) {
+        LOG.debug("Coordinator of shard {}: {}", shard, e.getMessage());
       }
     }
+    if (mostAdvanced != null) {
+      for (PaxosServer server : acceptors) {
+        try {
+          int lastApplied = server.getLastApplied();
+          if (lastApplied < applied) {
+            for (Proposal chosen : mostAdvanced.getChosen(lastApplied + 1, applied)) {
+              server.learn(chosen);
+            }
+          }
+        } catch (RemoteException e) {
+          LOG.debug("Coordinator of shard {}: {}", shard, e.getMessage());
+        }
+      }
+      window.learned(applied);
+      LOG.info("Coordinator of shard {} recovered the log up to slot {}", shard, applied);
+    }
+    for (int slot = applied + 1; slot <= accepted; slot++) {
+      window.skipTo(slot);
+      fill(acceptors, half, slot);
+    }
+    window.skipTo(Math.max(applied, accepted) + 1);
+    recovered = true;
+  }
 
-    // Check the majority
-    if(numPromised < half){
-      return "Consensus not reached";
+  /**
+   * Runs for the leadership of every slot from the next free one onwards. A rejected election
+   * leaves the next one to a later ballot, which is drawn above the ballots that rejected it.
+   * @return the leader ballot, or NO_BALLOT if no quorum promised it
+   */
+  private long becomeLeader(List<PaxosServer> acceptors, int half) throws RemoteException {
+    synchronized (electionLock) {
+      // Another command may have won leadership while this one was waiting
+      if (leaderBallot != NO_BALLOT) {
+        return leaderBallot;
+      }
+      Proposal election = createProposal(null);
+      election.setSlot(window.peekNext());
+      PhaseResult<Promise> promises = prepare(acceptors, half, election,
+              acceptor -> acceptor.prepareFrom(election));
+      if (!promises.isQuorumReached()) {
+        return NO_BALLOT;
+      }
+      // A previous leader may have got values chosen up to the highest slot any acceptor of the
+      // quorum accepted, so those slots are decided again before new commands take slots
+      int tail = -1;
+      for (Promise promise : promises.getReplies().values()) {
+        if (promise.getStatus() == Status.ACCEPTED) {
+          tail = Math.max(tail, promise.getProposal().getSlot());
+        }
+      }
+      while (window.peekNext() <= tail) {
+        int slot;
+        try {
+          slot = window.open();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RemoteException("Interrupted while waiting for the proposal window", e);
+        }
+        try {
+          fill(acceptors, half, slot);
+        } finally {
+          window.close(slot);
+        }
+      }
+      long ballot = election.getId();
+      LOG.info("Coordinator of shard {} is now the Multi-Paxos leader with ballot {} from slot {}",
+              shard, ballot, election.getSlot());
+      leaderElections.increment();
+      leaderBallot = ballot;
+      // Taking the lease right away keeps the other replicas from running for leadership
+      try {
+        confirmReadIndex();
+      } catch (RemoteException e) {
+        LOG.debug("Coordinator of shard {}: lease not granted: {}", shard, e.getMessage());
+      }
+      return leaderBallot;
     }
+  }
+
+  private synchronized void stepDown(long ballot) {
+    if (leaderBallot == ballot) {
+      LOG.info("Coordinator of shard {} lost Multi-Paxos leadership for ballot {}", shard, ballot);
+      leaderBallot = NO_BALLOT;
+      leaseExpiresAt = System.nanoTime();
+    }
+  }
+
+  /**
+   * Fills a slot with a NOOP, or with the value accepted in it with the highest ballot, since
+   * replicas apply nothing after a slot until a value is chosen in it. A slot that cannot be
+   * decided is abandoned and filled again later.
+   * @param slot slot to fill
+   * @return true if the NOOP was chosen, false if another value was or the slot is abandoned
+   * @throws RemoteException if a value was chosen but no replica applied it in time
+   */
+  private boolean fill(List<PaxosServer> acceptors, int half, int slot) throws RemoteException {
+    Proposal filler = createProposal(new Operation(RequestMethod.NOOP, -1));
+    filler.setSlot(slot);
+    String result = decide(acceptors, half, filler, false);
+    if (result == CONSENSUS_FAILED) {
+      window.abandon(slot);
+      return false;
+    }
+    return result != null;
+  }
+
+  /**
+   * Fills the slots abandoned so far, which were closed without a value chosen in them
+   */
+  private void fillAbandoned() {
+    for (int slot : window.takeAbandoned()) {
+      try {
+        fill(directory.getLive(), directory.quorum(), slot);
+      } catch (RemoteException | RuntimeException e) {
+        window.abandon(slot);
+        LOG.debug("Coordinator of shard {}: slot {} not filled: {}", shard, slot, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Gets a value chosen for the slot of a proposal. Each round prepares the slot, proposes the
+   * value with the highest ballot any acceptor of the quorum accepted, or the proposal's own
+   * value if there is none, and is retried with a higher ballot after a randomized,
+   * exponentially growing pause when a competing ballot wins either phase. Filling the slot
+   * either way keeps replicas applying the log in order from stalling behind a gap.
+   * @param proposal proposal whose slot is decided
+   * @param proposed whether the proposal was already sent to the accept phase under its ballot,
+   *                 which then cannot be prepared again; otherwise its ballot opens the first round
+   * @return result of the proposal, null if the slot was filled with another proposer's value
+   *         or is compacted already, or CONSENSUS_FAILED if no value could be chosen
+   */
+  private String decide(List<PaxosServer> acceptors, int half, Proposal proposal, boolean proposed)
+          throws RemoteException {
+    Operation operation = proposal.getOperation();
+    Proposal round = proposal;
+    long startedAt = System.nanoTime();
+    for (int attempt = 1; mayRetry(attempt, startedAt); attempt++) {
+      if (attempt > 1 || proposed) {
+        if (attempt > 1) {
+          backOff(attempt - 1);
+          retries.increment();
+        }
+        round = createProposal(operation);
+        round.setSlot(proposal.getSlot());
+        acceptors = directory.getLive();
+      }
+      Proposal current = round;
+      PhaseResult<Promise> promises = prepare(acceptors, half, current,
+              acceptor -> acceptor.prepare(current));
+      int truncated = -1;
+      for (Promise promise : promises.getReplies().values()) {
+        if (promise.getStatus() == Status.TRUNCATED) {
+          truncated = Math.max(truncated, promise.getProposal().getSlot());
+        }
+      }
+      if (truncated >= 0) {
+        // A replica applied the slot and compacted it, so a value was chosen in it long ago and
+        // every slot up to the compaction point is taken
+        window.advance(truncated);
+        return null;
+      }
+      if (!promises.isQuorumReached()) {
+        continue;
+      }
 
-    // Remove servers that are down from the acceptors list
-    for(PaxosServer acceptor: failedServers){
-      acceptors.remove(acceptor);
+      Proposal accepted = null;
+      for (Promise promise : promises.getReplies().values()) {
+        Proposal previous = promise.getProposal();
+        if (promise.getStatus() == Status.ACCEPTED
+                && (accepted == null || previous.getId() > accepted.getId())) {
+          accepted = previous;
+        }
+      }
+      // The accepted value may be this proposal's own, accepted under an earlier ballot of this
+      // or another proposer. Another request with the same effect is not, and this request then
+      // moves on to a new slot.
+      boolean own = accepted == null || operation.isSameRequest(accepted.getOperation());
+      Proposal value = current;
+      if (!own) {
+        value = new Proposal(current.getId(), current.getSlot(), accepted.getOperation());
+        adoptedValues.increment();
+      }
+
+      String result = acceptAndLearn(PhaseEngine.withoutFailed(acceptors, promises), acceptors,
+              half, value);
+      if (result != null) {
+        return own ? result : null;
+      }
     }
-    // Empty the servers that are down list
-    failedServers.clear();
+    LOG.warn("Coordinator of shard {}: slot {} could not be decided", shard, proposal.getSlot());
+    return CONSENSUS_FAILED;
+  }
 
+  /**
+   * Whether another attempt may start: up to MAX_ATTEMPTS of them, and beyond that for as long
+   * as a lease on the acceptors may keep refusing this coordinator
+   * @param attempt number of the attempt about to start
+   * @param startedAt start of the first attempt, from System.nanoTime
+   */
+  private static boolean mayRetry(int attempt, long startedAt) {
+    return attempt <= MAX_ATTEMPTS || System.nanoTime() - startedAt < RETRY_NANOS;
+  }
 
-    int accepted = 0;
-    for(PaxosServer acceptor: acceptors){
-      try{
-        Boolean isAccepted = acceptor.accept(proposal);
+  /**
+   * Pauses before retrying a round that lost to a competing ballot. The pause is drawn at
+   * random up to a bound that doubles with every attempt, so that competing proposers stop
+   * colliding instead of outbidding each other in lockstep.
+   * @param attempt number of attempts that failed so far
+   */
+  private void backOff(int attempt) throws RemoteException {
+    long bound = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min(attempt - 1, 20));
+    long pause = ThreadLocalRandom.current().nextLong(bound + 1);
+    backoffLatency.record(TimeUnit.MILLISECONDS.toNanos(pause));
+    try {
+      Thread.sleep(pause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while backing off", e);
+    }
+  }
 
-        if(isAccepted == null){
-          System.out.println("Server at port " + acceptor.getPort() + " is NOT RESPONDING to the proposal " +
-                  proposal.getOperation().getMethod() + "(" + proposal.getOperation().getKey() +
-                  "," + proposal.getOperation().getValue() + ")");
-          failedServers.add(acceptor);
+  /**
+   * Runs the prepare phase
+   * @param call prepare call to send to each acceptor
+   * @return result of the phase
+   */
+  private PhaseResult<Promise> prepare(List<PaxosServer> acceptors, int half, Proposal proposal,
+                                       PhaseEngine.PhaseCall<Promise> call) throws RemoteException {
+    // Prepare phase, sent to every acceptor at once
+    long startedAt = System.nanoTime();
+    PhaseResult<Promise> promises = phaseEngine.run(acceptors, call,
+            promise -> promise.getStatus() == Status.PROMISED || promise.getStatus() == Status.ACCEPTED,
+            half, PHASE_TIMEOUT_MILLIS, true);
+    prepareLatency.record(System.nanoTime() - startedAt);
+    directory.report(promises);
+    for (Promise promise : promises.getReplies().values()) {
+      if (promise.getStatus() == Status.REJECTED) {
+        rejectedPromises.increment();
+        // Later ballots of this process outrank the one that won
+        if (promise.getProposal() != null) {
+          observeBallot(promise.getProposal().getId());
         }
-        else if(isAccepted){
-          accepted += 1;
-          System.out.println("Server at port " + acceptor.getPort() + " has ACCEPTED proposal " +
-                  proposal.getOperation().getMethod() + "(" + proposal.getOperation().getKey() +
-                  "," + proposal.getOperation().getValue() + ")");
+      }
+    }
+    if (LOG.sampleTrace()) {
+      for (Map.Entry<PaxosServer, Promise> reply : promises.getReplies().entrySet()) {
+        Status status = reply.getValue().getStatus();
+        LOG.trace("Server at port {} has {} proposal {}", directory.portOf(reply.getKey()),
+                status == Status.ACCEPTED ? Status.PROMISED : status, describe(proposal));
+      }
+      if (promises.isQuorumReached()) {
+        LOG.trace("Prepare quorum reached with {} replica(s) still pending", promises.getPending());
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      for (PaxosServer acceptor : promises.getFailed()) {
+        LOG.debug("Server at port {} is NOT RESPONDING to the proposal {}", directory.portOf(acceptor),
+                describe(proposal));
+      }
+    }
+    return promises;
+  }
 
+  /**
+   * Runs the accept and learn phases
+   * @param learners replicas to send the learn phase to. This includes acceptors that failed an
+   *                 earlier phase, which would otherwise be left with a gap in their log.
+   * @return result of the operation, or null if the majority was not reached
+   * @throws RemoteException if the value was chosen but no replica applied it after the last
+   *                         learn attempt
+   */
+  private String acceptAndLearn(List<PaxosServer> acceptors, List<PaxosServer> learners, int half,
+                                Proposal proposal)
+          throws RemoteException {
+    // Accept phase
+    long startedAt = System.nanoTime();
+    PhaseResult<Boolean> accepts = phaseEngine.run(acceptors, acceptor -> acceptor.accept(proposal),
+            isAccepted -> isAccepted, half, PHASE_TIMEOUT_MILLIS, true);
+    acceptLatency.record(System.nanoTime() - startedAt);
+    directory.report(accepts);
+    if (LOG.sampleTrace()) {
+      for (Map.Entry<PaxosServer, Boolean> reply : accepts.getReplies().entrySet()) {
+        if (reply.getValue()) {
+          LOG.trace("Server at port {} has ACCEPTED proposal {}", directory.portOf(reply.getKey()),
+                  describe(proposal));
         }
-      } catch (Exception ignored) {
+      }
+      if (accepts.isQuorumReached()) {
+        LOG.trace("Accept quorum reached with {} replica(s) still pending", accepts.getPending());
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      for (PaxosServer acceptor : accepts.getFailed()) {
+        LOG.debug("Server at port {} is NOT RESPONDING to the proposal {}", directory.portOf(acceptor),
+                describe(proposal));
       }
     }
 
     // Check the majority
-    if(accepted < half){
-      return "Consensus not reached";
+    if (!accepts.isQuorumReached()) {
+      return null;
     }
 
-    // Remove servers that are down from the acceptors list
-    for(PaxosServer acceptor: failedServers){
-      acceptors.remove(acceptor);
+    // Learn messages go out in slot order so replicas never apply around a gap
+    startedAt = System.nanoTime();
+    try {
+      window.awaitTurn(proposal.getSlot());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while waiting to learn slot " + proposal.getSlot(), e);
     }
+    learnOrderWait.record(System.nanoTime() - startedAt);
 
-    String result = "";
+    // Learn phase. Stragglers are not cancelled so that every live replica applies the value.
+    // A replica still missing an earlier slot answers without a result, which is not a failure,
+    // so the phase waits for the first replica that has applied the slot.
+    for (int attempt = 1; ; attempt++) {
+      startedAt = System.nanoTime();
+      PhaseResult<Optional<String>> learned = phaseEngine.run(learners,
+              acceptor -> Optional.ofNullable(acceptor.learn(proposal)), Optional::isPresent, 1,
+              PHASE_TIMEOUT_MILLIS, false);
+      learnLatency.record(System.nanoTime() - startedAt);
+      directory.report(learned);
 
-    for(PaxosServer acceptor: acceptors){
-      try{
-        result = acceptor.learn(proposal);
-      } catch (Exception ignored) {
+      // Use the result of any replica that has applied the slot
+      for (Optional<String> reply : learned.getReplies().values()) {
+        if (reply.isPresent()) {
+          window.learned(proposal.getSlot());
+          return reply.get();
+        }
+      }
+      if (attempt >= MAX_ATTEMPTS) {
+        // The value is chosen, so proposing it again could apply it twice; its result is unknown
+        throw new RemoteException("Slot " + proposal.getSlot()
+                + " was chosen but no replica applied it in time; the outcome is unknown");
       }
+      // Every replica is behind an earlier slot, such as one another proposer is still deciding;
+      // learning again is harmless and returns the result once the gap is filled
+      backOff(attempt);
     }
+  }
 
-    return result;
+  /**
+   * Creates a proposal with the next ballot of this coordinator
+   * @param operation operation to propose, or null for a leader election
+   * @return the proposal
+   */
+  private Proposal createProposal(Operation operation) {
+    return new Proposal(ballots.next(), operation);
+  }
+
+  private static String describe(Proposal proposal) {
+    if (proposal.getOperation() == null) {
+      return "with ballot " + proposal.getId() + " from slot " + proposal.getSlot();
+    }
+    if (proposal.getOperation().getMethod().isComposite()) {
+      return proposal.getOperation().getMethod() + " of " + proposal.getOperation().getOperations().size()
+              + " operations";
+    }
+    return proposal.getOperation().getMethod() + "(" + proposal.getOperation().getKey() +
+            "," + proposal.getOperation().getValue() + ")";
   }
 }
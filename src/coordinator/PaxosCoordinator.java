@@ -2,6 +2,7 @@ package coordinator;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 import paxos.Proposal;
 import server.PaxosServer;
@@ -19,8 +20,50 @@ public interface PaxosCoordinator extends Remote {
   String executeOperation(Proposal proposal) throws RemoteException;
 
   /**
-   * Registers the server to the coordinator
-   * @param server server instance to register
+   * Finds the log slot a replica must have applied before it can answer a read locally and
+   * still be linearizable
+   * @return slot index, or -1 if nothing has been committed
+   * @throws RemoteException if no quorum confirmed the read index
    */
-  void registerNewServer(PaxosServer server);
+  int readIndex() throws RemoteException;
+
+  /**
+   * Replicas currently reachable, for replicas catching up from their peers
+   * @return stubs of every replica that is not down
+   */
+  List<PaxosServer> getReplicas();
+
+  /**
+   * Number of replicas that makes a majority, whether they are up or not
+   * @return quorum size
+   */
+  int quorum();
+
+  /**
+   * Whether this coordinator holds Multi-Paxos leadership, so that replicas propose their
+   * writes through it
+   * @return true if it won leadership and has not lost it since
+   */
+  boolean isLeader();
+
+  /**
+   * First replica in server order that is not down, which replicas send their writes to while
+   * no leader is known so that they do not all run for leadership at once
+   * @return server number, or -1 if every replica is down
+   */
+  int getFirstLive();
+
+  /**
+   * Makes sure every ballot of this coordinator from now on outranks the given one, such as a
+   * ballot its replica promised before a restart
+   * @param ballot ballot to outrank
+   */
+  void observeBallot(long ballot);
+
+  /**
+   * Replica of one server, such as the Multi-Paxos leader writes are forwarded to
+   * @param serverId server number
+   * @return stub of the replica, or null if the server is unknown or down
+   */
+  PaxosServer getReplica(int serverId);
 }
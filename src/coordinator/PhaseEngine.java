@@ -0,0 +1,134 @@
+package coordinator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import server.PaxosServer;
+
+/**
+ * Sends a Paxos phase to every acceptor at once and returns as soon as a quorum of
+ * positive replies has arrived, the quorum can no longer be reached, or the phase deadline
+ * expires. Calls run on a bounded pool behind a bounded queue; a call turned away because
+ * both are full counts as a failed reply of its acceptor.
+ */
+public class PhaseEngine {
+
+  private static final int THREADS = Integer.getInteger("paxos.phase.threads", 64);
+  private static final int QUEUE_SIZE = Integer.getInteger("paxos.phase.queueSize", 256);
+
+  /**
+   * A single phase call against one acceptor
+   * @param <T> type of the reply
+   */
+  public interface PhaseCall<T> {
+    T call(PaxosServer acceptor) throws Exception;
+  }
+
+  private final ThreadPoolExecutor executor;
+
+  public PhaseEngine() {
+    this.executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE_SIZE), runnable -> {
+              Thread thread = new Thread(runnable, "paxos-phase");
+              thread.setDaemon(true);
+              return thread;
+            }, (task, executor) -> {
+              throw new RejectedExecutionException("Phase queue is full");
+            });
+    // Idle threads are released between bursts
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Stops the threads running the phase calls, interrupting calls still in flight
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Runs one phase against all acceptors concurrently.
+   * @param acceptors acceptors to send the phase to
+   * @param call phase call to execute against each acceptor
+   * @param isPositive predicate deciding whether a non-null reply counts towards the quorum
+   * @param quorum number of positive replies needed
+   * @param timeoutMillis deadline for the whole phase
+   * @param cancelStragglers whether calls still running at quorum should be cancelled
+   * @return the result of the phase
+   */
+  public <T> PhaseResult<T> run(List<PaxosServer> acceptors, PhaseCall<T> call,
+                                Predicate<T> isPositive, int quorum, long timeoutMillis,
+                                boolean cancelStragglers) {
+    PhaseResult<T> result = new PhaseResult<>();
+    long startedAt = System.nanoTime();
+    ExecutorCompletionService<T> completion = new ExecutorCompletionService<>(executor);
+    Map<Future<T>, PaxosServer> inFlight = new HashMap<>();
+    for (PaxosServer acceptor : acceptors) {
+      try {
+        inFlight.put(completion.submit(() -> call.call(acceptor)), acceptor);
+      } catch (RejectedExecutionException e) {
+        result.addFailure(acceptor);
+      }
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    int outstanding = inFlight.size();
+    while (outstanding > 0 && result.getPositive() < quorum
+            && result.getPositive() + outstanding >= quorum) {
+      long remaining = deadline - System.nanoTime();
+      Future<T> done;
+      try {
+        done = remaining > 0 ? completion.poll(remaining, TimeUnit.NANOSECONDS) : null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (done == null) {
+        // Phase deadline expired
+        break;
+      }
+      outstanding -= 1;
+      PaxosServer acceptor = inFlight.remove(done);
+      try {
+        T reply = done.get();
+        if (reply == null) {
+          result.addFailure(acceptor);
+        } else {
+          result.addReply(acceptor, reply, isPositive.test(reply), System.nanoTime() - startedAt);
+        }
+      } catch (ExecutionException | InterruptedException e) {
+        result.addFailure(acceptor);
+      }
+    }
+
+    if (cancelStragglers) {
+      for (Future<T> straggler : inFlight.keySet()) {
+        straggler.cancel(true);
+      }
+    }
+    result.complete(result.getPositive() >= quorum, outstanding);
+    return result;
+  }
+
+  /**
+   * Acceptors that did not fail during the phase, preserving the original order
+   * @param acceptors acceptors the phase was sent to
+   * @param result result of the phase
+   * @return acceptors that are still considered alive
+   */
+  public static List<PaxosServer> withoutFailed(List<PaxosServer> acceptors, PhaseResult<?> result) {
+    List<PaxosServer> alive = new ArrayList<>(acceptors);
+    alive.removeAll(result.getFailed());
+    return alive;
+  }
+}
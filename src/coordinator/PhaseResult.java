@@ -0,0 +1,89 @@
+package coordinator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import server.PaxosServer;
+
+/**
+ * Class to encapsulate the outcome of one Paxos phase sent to all acceptors in parallel
+ * @param <T> type of the reply returned by the acceptors for this phase
+ */
+public class PhaseResult<T> {
+  private final Map<PaxosServer, T> replies;
+  private final Map<PaxosServer, Long> latencies;
+  private final List<PaxosServer> failed;
+  private int positive;
+  private int pending;
+  private boolean quorumReached;
+
+  public PhaseResult() {
+    this.replies = new LinkedHashMap<>();
+    this.latencies = new HashMap<>();
+    this.failed = new ArrayList<>();
+    this.positive = 0;
+    this.pending = 0;
+    this.quorumReached = false;
+  }
+
+  void addReply(PaxosServer acceptor, T reply, boolean isPositive, long nanos) {
+    replies.put(acceptor, reply);
+    latencies.put(acceptor, nanos);
+    if (isPositive) {
+      positive += 1;
+    }
+  }
+
+  void addFailure(PaxosServer acceptor) {
+    failed.add(acceptor);
+  }
+
+  void complete(boolean quorumReached, int pending) {
+    this.quorumReached = quorumReached;
+    this.pending = pending;
+  }
+
+  /**
+   * Replies received before the phase completed, in arrival order
+   * @return map of acceptor to its reply
+   */
+  public Map<PaxosServer, T> getReplies() {
+    return replies;
+  }
+
+  /**
+   * Time from the start of the phase to the reply of an acceptor
+   * @param acceptor acceptor that replied
+   * @return latency in nanoseconds, or -1 if the acceptor did not reply
+   */
+  public long getLatency(PaxosServer acceptor) {
+    return latencies.getOrDefault(acceptor, -1L);
+  }
+
+  /**
+   * Acceptors that returned null or threw while handling the phase
+   * @return list of failed acceptors
+   */
+  public List<PaxosServer> getFailed() {
+    return failed;
+  }
+
+  public int getPositive() {
+    return positive;
+  }
+
+  /**
+   * Number of acceptors that had not replied yet when the phase completed
+   * @return number of pending acceptors
+   */
+  public int getPending() {
+    return pending;
+  }
+
+  public boolean isQuorumReached() {
+    return quorumReached;
+  }
+}
@@ -0,0 +1,158 @@
+package coordinator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Window of log slots a coordinator may have in flight at the same time. Prepare and accept
+ * rounds of the open slots run concurrently, while learn messages are delivered in slot order
+ * so that replicas apply the log without waiting on gaps.
+ */
+public class ProposalWindow {
+
+  private final Semaphore permits;
+  private final int size;
+  private int nextSlot;
+  // Lowest slot whose learn phase has not been delivered yet
+  private int nextToLearn;
+  // Slots above nextToLearn that finished out of order
+  private final TreeSet<Integer> closedAhead;
+  // Highest slot whose learn phase a replica answered with its result. Unlike nextToLearn, this
+  // never moves past slots that were abandoned or skipped for other proposers.
+  private int highestLearned;
+  // Closed slots in which no value could be chosen yet, to be filled again
+  private final TreeSet<Integer> abandoned;
+
+  public ProposalWindow(int size) {
+    this.permits = new Semaphore(size, true);
+    this.size = size;
+    this.nextSlot = 0;
+    this.nextToLearn = 0;
+    this.closedAhead = new TreeSet<>();
+    this.highestLearned = -1;
+    this.abandoned = new TreeSet<>();
+  }
+
+  /**
+   * Opens the next slot, waiting while the window is full
+   * @return slot index to propose in
+   * @throws InterruptedException if interrupted while waiting for room in the window
+   */
+  public int open() throws InterruptedException {
+    permits.acquire();
+    synchronized (this) {
+      return nextSlot++;
+    }
+  }
+
+  /**
+   * Slot the next call to open would return
+   * @return slot index
+   */
+  public synchronized int peekNext() {
+    return nextSlot;
+  }
+
+  /**
+   * Moves the window forward so that the next slot opened is at least the given one, treating
+   * every slot below it as learned. Only used while no slot is open.
+   * @param slot first slot to open
+   */
+  public synchronized void skipTo(int slot) {
+    nextSlot = Math.max(nextSlot, slot);
+    nextToLearn = Math.max(nextToLearn, slot);
+    notifyAll();
+  }
+
+  /**
+   * Moves the next slot opened past a slot another proposer is using. The slots skipped are
+   * decided by others, so they are treated as closed rather than holding back later learns.
+   * @param slot highest slot known to be in use
+   */
+  public synchronized void advance(int slot) {
+    while (nextSlot <= slot) {
+      closedAhead.add(nextSlot);
+      nextSlot += 1;
+    }
+    while (closedAhead.remove(nextToLearn)) {
+      nextToLearn += 1;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Blocks until every slot below the given one has been closed, so that its learn phase is
+   * delivered in order
+   * @param slot slot about to be learned
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized void awaitTurn(int slot) throws InterruptedException {
+    while (nextToLearn < slot) {
+      wait();
+    }
+  }
+
+  /**
+   * Closes a slot once it has been learned or abandoned, freeing its place in the window
+   * @param slot slot to close
+   */
+  public synchronized void close(int slot) {
+    closedAhead.add(slot);
+    while (closedAhead.remove(nextToLearn)) {
+      nextToLearn += 1;
+    }
+    notifyAll();
+    permits.release();
+  }
+
+  /**
+   * Records a slot that was closed without a value chosen in it. Replicas apply nothing after
+   * such a slot, so it is filled again later.
+   * @param slot slot abandoned
+   */
+  public synchronized void abandon(int slot) {
+    abandoned.add(slot);
+  }
+
+  /**
+   * Takes the abandoned slots, which the caller must fill or abandon again
+   * @return slots in ascending order
+   */
+  public synchronized List<Integer> takeAbandoned() {
+    List<Integer> slots = new ArrayList<>(abandoned);
+    abandoned.clear();
+    return slots;
+  }
+
+  /**
+   * Records that a slot has been learned, meaning a replica applied it and therefore every slot
+   * below it
+   * @param slot slot learned
+   */
+  public synchronized void learned(int slot) {
+    highestLearned = Math.max(highestLearned, slot);
+  }
+
+  /**
+   * Highest slot learned through this window. Closing a slot frees its place whether or not it
+   * was learned, so this is what a read index may be based on, not the closed slots.
+   * @return slot index, or -1 if no slot has been learned
+   */
+  public synchronized int getCommitted() {
+    return highestLearned;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Number of slots currently open
+   * @return number of in-flight proposals
+   */
+  public int getInFlight() {
+    return size - permits.availablePermits();
+  }
+}
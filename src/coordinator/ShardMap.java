@@ -0,0 +1,91 @@
+package coordinator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Partitioning of the integer keyspace into independent Paxos groups. Keys are spread over the
+ * shards either by hash or in contiguous ranges of a fixed width, which keeps neighbouring keys
+ * in the same shard.
+ */
+public class ShardMap {
+
+  private final int shards;
+  private final boolean byRange;
+  private final int rangeWidth;
+
+  public ShardMap() {
+    this(Integer.getInteger("paxos.shards", 1),
+            "range".equals(System.getProperty("paxos.shards.partitioner", "hash")),
+            Integer.getInteger("paxos.shards.rangeWidth", 1024));
+  }
+
+  public ShardMap(int shards, boolean byRange, int rangeWidth) {
+    if (shards < 1) {
+      throw new IllegalArgumentException("Number of shards must be positive: " + shards);
+    }
+    this.shards = shards;
+    this.byRange = byRange;
+    this.rangeWidth = rangeWidth;
+  }
+
+  public int getShards() {
+    return shards;
+  }
+
+  /**
+   * Shard owning a key
+   * @param key integer key
+   * @return shard index
+   */
+  public int shardOf(int key) {
+    if (byRange) {
+      return Math.floorMod(Math.floorDiv(key, rangeWidth), shards);
+    }
+    // Spread consecutive keys, which clients tend to use, over all shards
+    int hash = key * 0x9E3779B9;
+    return Math.floorMod(hash ^ (hash >>> 16), shards);
+  }
+
+  /**
+   * Shards that may own keys of a range. A range in hash mode can touch every shard, while in
+   * range mode only the shards of the ranges it overlaps.
+   * @param from first key, inclusive
+   * @param to last key, exclusive
+   * @return shard indexes in ascending order
+   */
+  public List<Integer> shardsOf(int from, int to) {
+    List<Integer> owners = new ArrayList<>();
+    if (from >= to) {
+      return owners;
+    }
+    long firstRange = Math.floorDiv(from, rangeWidth);
+    long lastRange = Math.floorDiv(to - 1, rangeWidth);
+    if (!byRange || lastRange - firstRange + 1 >= shards) {
+      for (int shard = 0; shard < shards; shard++) {
+        owners.add(shard);
+      }
+      return owners;
+    }
+    boolean[] owning = new boolean[shards];
+    for (long range = firstRange; range <= lastRange; range++) {
+      owning[(int) Math.floorMod(range, (long) shards)] = true;
+    }
+    for (int shard = 0; shard < shards; shard++) {
+      if (owning[shard]) {
+        owners.add(shard);
+      }
+    }
+    return owners;
+  }
+
+  /**
+   * Registry name of the replica of a shard hosted by a server
+   * @param serverNumber server number, starting at 1
+   * @param shard shard index
+   * @return registry name
+   */
+  public static String acceptorName(int serverNumber, int shard) {
+    return "KeyValueStore" + serverNumber + "-shard" + shard;
+  }
+}
@@ -0,0 +1,270 @@
+package logging;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer of the log. Threads that log only claim a slot of a bounded ring buffer
+ * and copy the format string and its arguments into it; a single writer thread formats the
+ * messages and writes them out in batches. A full buffer drops events rather than blocking the
+ * caller, and the writer reports how many were lost.
+ */
+final class LogWriter {
+
+  private static final int BUFFER_SIZE =
+          Integer.highestOneBit(Math.max(2, Integer.getInteger("paxos.log.bufferSize", 8192)));
+  private static final boolean JSON = System.getProperty("paxos.log.format", "text").equals("json");
+  private static final String FILE = System.getProperty("paxos.log.file");
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final DateTimeFormatter TIME =
+          DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+  static final LogWriter INSTANCE = new LogWriter();
+
+  /**
+   * A slot of the ring buffer. Its sequence tells whose turn it is: equal to a producer's
+   * position when free, one more once the event is published.
+   */
+  private static final class Event {
+    private volatile long sequence;
+    private long timeMillis;
+    private Level level;
+    private String logger;
+    private String thread;
+    private String format;
+    private int argCount;
+    private Object arg0;
+    private Object arg1;
+    private Object arg2;
+    private Object[] args;
+    private Throwable error;
+
+    Object arg(int index) {
+      if (args != null) {
+        return args[index];
+      }
+      return index == 0 ? arg0 : index == 1 ? arg1 : arg2;
+    }
+  }
+
+  private final Event[] ring;
+  private final int mask;
+  private final AtomicLong tail;
+  // Next position to read, only touched by the writer thread
+  private long head;
+  private final LongAdder dropped;
+  private final StringBuilder line;
+  private Writer file;
+
+  private LogWriter() {
+    this.ring = new Event[BUFFER_SIZE];
+    for (int i = 0; i < BUFFER_SIZE; i++) {
+      ring[i] = new Event();
+      ring[i].sequence = i;
+    }
+    this.mask = BUFFER_SIZE - 1;
+    this.tail = new AtomicLong();
+    this.head = 0;
+    this.dropped = new LongAdder();
+    this.line = new StringBuilder(256);
+    Thread thread = new Thread(this::run, "log-writer");
+    thread.setDaemon(true);
+    thread.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "log-flush"));
+  }
+
+  /**
+   * Queues an event; the arguments are formatted later on the writer thread
+   * @return false if the buffer was full and the event was dropped
+   */
+  boolean publish(Level level, String logger, String format, int argCount,
+                  Object arg0, Object arg1, Object arg2, Object[] args, Throwable error) {
+    long position = tail.get();
+    Event event;
+    while (true) {
+      event = ring[(int) position & mask];
+      long difference = event.sequence - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        dropped.increment();
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+    event.timeMillis = System.currentTimeMillis();
+    event.level = level;
+    event.logger = logger;
+    event.thread = Thread.currentThread().getName();
+    event.format = format;
+    event.argCount = argCount;
+    event.arg0 = arg0;
+    event.arg1 = arg1;
+    event.arg2 = arg2;
+    event.args = args;
+    event.error = error;
+    event.sequence = position + 1;
+    return true;
+  }
+
+  private void run() {
+    while (true) {
+      if (!drain()) {
+        LockSupport.parkNanos(IDLE_NANOS);
+      }
+    }
+  }
+
+  /**
+   * Writes every published event
+   * @return whether there was anything to write
+   */
+  private synchronized boolean drain() {
+    boolean wrote = false;
+    try {
+      long lost = dropped.sumThenReset();
+      if (lost > 0) {
+        line.setLength(0);
+        format(System.currentTimeMillis(), Level.WARN, LogWriter.class.getName(),
+                Thread.currentThread().getName(), lost + " log events dropped, the log buffer was full", null);
+        write();
+        wrote = true;
+      }
+      while (true) {
+        Event event = ring[(int) head & mask];
+        if (event.sequence != head + 1) {
+          break;
+        }
+        line.setLength(0);
+        format(event.timeMillis, event.level, event.logger, event.thread, message(event), event.error);
+        // Hand the slot back to the producers, without keeping its arguments reachable
+        event.arg0 = null;
+        event.arg1 = null;
+        event.arg2 = null;
+        event.args = null;
+        event.error = null;
+        event.sequence = head + BUFFER_SIZE;
+        head += 1;
+        write();
+        wrote = true;
+      }
+      if (wrote) {
+        flush();
+      }
+    } catch (IOException | RuntimeException e) {
+      // The log must not take the writer down; the next batch tries again
+      e.printStackTrace();
+    }
+    return wrote;
+  }
+
+  /**
+   * Replaces each {} of the format with the next argument
+   */
+  private static String message(Event event) {
+    if (event.argCount == 0) {
+      return event.format;
+    }
+    StringBuilder message = new StringBuilder(event.format.length() + 32);
+    int arg = 0;
+    int from = 0;
+    int placeholder;
+    while (arg < event.argCount && (placeholder = event.format.indexOf("{}", from)) >= 0) {
+      message.append(event.format, from, placeholder).append(event.arg(arg));
+      arg += 1;
+      from = placeholder + 2;
+    }
+    return message.append(event.format, from, event.format.length()).toString();
+  }
+
+  private void format(long timeMillis, Level level, String logger, String thread, String message,
+                      Throwable error) {
+    String time = TIME.format(Instant.ofEpochMilli(timeMillis));
+    if (JSON) {
+      line.append("{\"time\":");
+      quote(time);
+      line.append(",\"level\":\"").append(level).append("\",\"logger\":");
+      quote(logger);
+      line.append(",\"thread\":");
+      quote(thread);
+      line.append(",\"message\":");
+      quote(message);
+      if (error != null) {
+        line.append(",\"error\":");
+        quote(stackTrace(error));
+      }
+      line.append('}');
+    } else {
+      line.append('[').append(time).append("] ").append(level).append(' ')
+              .append(logger).append(" - ").append(message);
+      if (error != null) {
+        line.append(System.lineSeparator()).append(stackTrace(error).stripTrailing());
+      }
+    }
+    line.append(System.lineSeparator());
+  }
+
+  private void quote(String value) {
+    line.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c == '\n') {
+        line.append("\\n");
+      } else if (c < 0x20) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+
+  private static String stackTrace(Throwable error) {
+    StringWriter trace = new StringWriter();
+    error.printStackTrace(new PrintWriter(trace));
+    return trace.toString();
+  }
+
+  private void write() throws IOException {
+    if (FILE == null) {
+      // Looked up every time, so output redirected with System.setOut follows
+      System.out.append(line);
+      return;
+    }
+    if (file == null) {
+      file = new BufferedWriter(Files.newBufferedWriter(Paths.get(FILE), StandardCharsets.UTF_8,
+              StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+    file.append(line);
+  }
+
+  private void flush() throws IOException {
+    if (file != null) {
+      file.flush();
+    } else {
+      PrintStream out = System.out;
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package logging;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Levelled logger writing through the asynchronous LogWriter. Messages are format strings
+ * with {} placeholders, filled in on the writer thread, so arguments must not change after
+ * being logged. The level is fixed at startup by paxos.log.level, which lets the JIT remove
+ * disabled calls entirely; calls whose arguments cost something to build are guarded with
+ * isEnabled or sampleTrace.
+ */
+public final class Logger {
+
+  private static final Level LEVEL = Level.valueOf(System.getProperty("paxos.log.level", "INFO"));
+  // One in this many traces is kept, for traces logged once per message
+  private static final int TRACE_SAMPLE_EVERY = Math.max(1, Integer.getInteger("paxos.log.traceSampleEvery", 1));
+
+  private final String name;
+
+  private Logger(String name) {
+    this.name = name;
+  }
+
+  public static Logger get(Class<?> type) {
+    return new Logger(type.getName());
+  }
+
+  public boolean isEnabled(Level level) {
+    return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+  }
+
+  public boolean isDebugEnabled() {
+    return isEnabled(Level.DEBUG);
+  }
+
+  /**
+   * Decides whether to log a trace of a frequent event, such as every message received. With
+   * tracing on, one in paxos.log.traceSampleEvery calls says yes.
+   * @return whether to log the trace
+   */
+  public boolean sampleTrace() {
+    return isEnabled(Level.TRACE)
+            && (TRACE_SAMPLE_EVERY == 1 || ThreadLocalRandom.current().nextInt(TRACE_SAMPLE_EVERY) == 0);
+  }
+
+  public void trace(String format, Object arg) {
+    log(Level.TRACE, format, 1, arg, null, null, null);
+  }
+
+  public void trace(String format, Object arg0, Object arg1) {
+    log(Level.TRACE, format, 2, arg0, arg1, null, null);
+  }
+
+  public void trace(String format, Object arg0, Object arg1, Object arg2) {
+    log(Level.TRACE, format, 3, arg0, arg1, arg2, null);
+  }
+
+  public void debug(String format, Object arg) {
+    log(Level.DEBUG, format, 1, arg, null, null, null);
+  }
+
+  public void debug(String format, Object arg0, Object arg1) {
+    log(Level.DEBUG, format, 2, arg0, arg1, null, null);
+  }
+
+  public void debug(String format, Object arg0, Object arg1, Object arg2) {
+    log(Level.DEBUG, format, 3, arg0, arg1, arg2, null);
+  }
+
+  public void info(String message) {
+    log(Level.INFO, message, 0, null, null, null, null);
+  }
+
+  public void info(String format, Object arg) {
+    log(Level.INFO, format, 1, arg, null, null, null);
+  }
+
+  public void info(String format, Object arg0, Object arg1) {
+    log(Level.INFO, format, 2, arg0, arg1, null, null);
+  }
+
+  public void info(String format, Object arg0, Object arg1, Object arg2) {
+    log(Level.INFO, format, 3, arg0, arg1, arg2, null);
+  }
+
+  public void info(String format, Object... args) {
+    if (isEnabled(Level.INFO)) {
+      LogWriter.INSTANCE.publish(Level.INFO, name, format, args.length, null, null, null, args, null);
+    }
+  }
+
+  public void warn(String format, Object arg) {
+    log(Level.WARN, format, 1, arg, null, null, null);
+  }
+
+  public void warn(String format, Object arg0, Object arg1) {
+    log(Level.WARN, format, 2, arg0, arg1, null, null);
+  }
+
+  public void error(String message) {
+    log(Level.ERROR, message, 0, null, null, null, null);
+  }
+
+  public void error(String format, Object arg) {
+    log(Level.ERROR, format, 1, arg, null, null, null);
+  }
+
+  /**
+   * Logs an error with the stack trace of its cause
+   */
+  public void error(String message, Throwable error) {
+    log(Level.ERROR, message, 0, null, null, null, error);
+  }
+
+  private void log(Level level, String format, int argCount, Object arg0, Object arg1, Object arg2,
+                   Throwable error) {
+    if (isEnabled(level)) {
+      LogWriter.INSTANCE.publish(level, name, format, argCount, arg0, arg1, arg2, null, error);
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic count of events, cheap to increment from many threads at once
+ */
+public class Counter {
+
+  private final LongAdder count;
+
+  public Counter() {
+    this.count = new LongAdder();
+  }
+
+  public void increment() {
+    count.increment();
+  }
+
+  public void add(long events) {
+    count.add(events);
+  }
+
+  public long get() {
+    return count.sum();
+  }
+}
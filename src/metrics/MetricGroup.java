@@ -0,0 +1,142 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of one component, such as the coordinator of a shard or a replica. Each value is an
+ * attribute of the group's MBean and a line of the HTTP endpoint; a latency histogram is shown
+ * as its count, mean, percentiles and maximum in microseconds since the process started.
+ */
+public class MetricGroup implements DynamicMBean {
+
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  private final ObjectName name;
+  private final String type;
+  private final Map<String, String> labels;
+  // Attribute name to its current value, in registration order
+  private final Map<String, Supplier<Number>> values;
+
+  MetricGroup(ObjectName name, String type, Map<String, String> labels) {
+    this.name = name;
+    this.type = type;
+    this.labels = labels;
+    this.values = Collections.synchronizedMap(new LinkedHashMap<>());
+  }
+
+  public Counter counter(String metric) {
+    Counter counter = new Counter();
+    values.put(metric, counter::get);
+    return counter;
+  }
+
+  /**
+   * Latencies in nanoseconds
+   */
+  public LatencyHistogram histogram(String metric) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    values.put(metric + ".count", histogram::getCount);
+    values.put(metric + ".meanMicros", () -> histogram.getMean() / 1000);
+    for (double percentile : PERCENTILES) {
+      String label = String.valueOf(percentile).replace(".0", "").replace(".", "");
+      values.put(metric + ".p" + label + "Micros", () -> histogram.getPercentile(percentile) / 1000.0);
+    }
+    values.put(metric + ".maxMicros", () -> histogram.getMax() / 1000.0);
+    return histogram;
+  }
+
+  /**
+   * A value read when the metrics are, such as the size of a queue
+   */
+  public void gauge(String metric, Supplier<Number> gauge) {
+    values.put(metric, gauge);
+  }
+
+  public ObjectName getName() {
+    return name;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public Map<String, String> getLabels() {
+    return labels;
+  }
+
+  /**
+   * Current value of every metric
+   * @return map of attribute name to value, in registration order
+   */
+  public Map<String, Number> sample() {
+    List<Map.Entry<String, Supplier<Number>>> entries;
+    synchronized (values) {
+      entries = new ArrayList<>(values.entrySet());
+    }
+    Map<String, Number> sample = new LinkedHashMap<>();
+    for (Map.Entry<String, Supplier<Number>> entry : entries) {
+      sample.put(entry.getKey(), entry.getValue().get());
+    }
+    return sample;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Supplier<Number> value = values.get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value.get();
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      Supplier<Number> value = values.get(attribute);
+      if (value != null) {
+        list.add(new Attribute(attribute, value.get()));
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) {
+    throw new UnsupportedOperationException("Metrics have no operations");
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<>();
+    for (Map.Entry<String, Number> entry : sample().entrySet()) {
+      attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+              entry.getKey(), true, false, false));
+    }
+    return new MBeanInfo(getClass().getName(), type + " metrics",
+            attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+  }
+}
@@ -0,0 +1,183 @@
+package metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import logging.Logger;
+
+/**
+ * Metric groups of this process. Every group is registered as an MBean under the paxos domain
+ * of the platform MBean server, so JConsole or any JMX client can read it, and with
+ * paxos.metrics.port set the groups are also served on the loopback interface: /metrics as
+ * text lines of the form name{labels} value, /metrics.json as JSON.
+ */
+public final class Metrics {
+
+  private static final Logger LOG = Logger.get(Metrics.class);
+
+  private static final String DOMAIN = "paxos";
+  private static final int HTTP_PORT = Integer.getInteger("paxos.metrics.port", -1);
+
+  // Groups by object name, so the output is sorted and a replaced component replaces its group
+  private static final Map<String, MetricGroup> GROUPS = new ConcurrentSkipListMap<>();
+
+  private static HttpServer http;
+
+  private Metrics() {
+  }
+
+  /**
+   * Creates the group of a component, replacing any group of the same type and labels
+   * @param type kind of component, such as Coordinator
+   * @param labels pairs of label name and value telling components of a kind apart
+   * @return the new group
+   */
+  public static MetricGroup group(String type, String... labels) {
+    Map<String, String> labelMap = new LinkedHashMap<>();
+    StringBuilder name = new StringBuilder(DOMAIN).append(":type=").append(type);
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      labelMap.put(labels[i], labels[i + 1]);
+      name.append(',').append(labels[i]).append('=').append(ObjectName.quote(labels[i + 1]));
+    }
+    ObjectName objectName;
+    try {
+      objectName = new ObjectName(name.toString());
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalArgumentException("Invalid metric group " + name, e);
+    }
+    MetricGroup group = new MetricGroup(objectName, type, labelMap);
+    GROUPS.put(objectName.getCanonicalName(), group);
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      try {
+        server.unregisterMBean(objectName);
+      } catch (InstanceNotFoundException e) {
+        // First group of this component
+      }
+      server.registerMBean(group, objectName);
+    } catch (JMException e) {
+      LOG.warn("Metrics {} could not be registered with JMX: {}", objectName, e);
+    }
+    return group;
+  }
+
+  /**
+   * Starts the HTTP endpoint if paxos.metrics.port is set. Only the first call starts it.
+   */
+  public static synchronized void startHttpServer() {
+    if (HTTP_PORT < 0 || http != null) {
+      return;
+    }
+    try {
+      http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), HTTP_PORT), 0);
+      http.createContext("/metrics", exchange -> {
+        boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+        respond(exchange, json ? json() : text(), json ? "application/json" : "text/plain");
+      });
+      http.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-http");
+        thread.setDaemon(true);
+        return thread;
+      }));
+      http.start();
+      LOG.info("Metrics served on http://{}:{}/metrics", InetAddress.getLoopbackAddress().getHostAddress(),
+              http.getAddress().getPort());
+    } catch (IOException e) {
+      LOG.error("Metrics endpoint could not be started", e);
+    }
+  }
+
+  /**
+   * Every metric as a line of text, e.g. paxos_coordinator_prepare_p99Micros{shard="0"} 812.5
+   */
+  public static String text() {
+    StringBuilder text = new StringBuilder();
+    for (MetricGroup group : GROUPS.values()) {
+      StringBuilder labels = new StringBuilder();
+      for (Map.Entry<String, String> label : group.getLabels().entrySet()) {
+        labels.append(labels.length() == 0 ? "{" : ",").append(label.getKey()).append("=\"")
+                .append(label.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+      }
+      if (labels.length() > 0) {
+        labels.append('}');
+      }
+      String prefix = DOMAIN + "_" + group.getType().toLowerCase(Locale.ROOT) + "_";
+      for (Map.Entry<String, Number> metric : group.sample().entrySet()) {
+        text.append(prefix).append(metric.getKey().replace('.', '_')).append(labels).append(' ')
+                .append(format(metric.getValue())).append('\n');
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Every group as a JSON object with its type, labels and metrics
+   */
+  public static String json() {
+    StringBuilder json = new StringBuilder("[");
+    String separator = "\n";
+    for (MetricGroup group : GROUPS.values()) {
+      json.append(separator).append("  {\"type\": ").append(quote(group.getType())).append(", \"labels\": {");
+      String labelSeparator = "";
+      for (Map.Entry<String, String> label : group.getLabels().entrySet()) {
+        json.append(labelSeparator).append(quote(label.getKey())).append(": ").append(quote(label.getValue()));
+        labelSeparator = ", ";
+      }
+      json.append("}, \"metrics\": {");
+      String metricSeparator = "";
+      for (Map.Entry<String, Number> metric : group.sample().entrySet()) {
+        json.append(metricSeparator).append(quote(metric.getKey())).append(": ").append(format(metric.getValue()));
+        metricSeparator = ", ";
+      }
+      json.append("}}");
+      separator = ",\n";
+    }
+    return json.append("\n]\n").toString();
+  }
+
+  private static void respond(HttpExchange exchange, String body, String contentType) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static String format(Number value) {
+    double number = value.doubleValue();
+    if (Double.isNaN(number) || Double.isInfinite(number)) {
+      return "0";
+    }
+    if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+      return Long.toString((long) number);
+    }
+    // Enough decimals for ratios, without the noise of a double
+    return new BigDecimal(number).setScale(4, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString();
+  }
+
+  private static String quote(String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+}
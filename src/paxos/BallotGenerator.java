@@ -0,0 +1,57 @@
+package paxos;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free source of unique, increasing ballots. A ballot is a (round, proposerId) pair packed
+ * into a long with the round in the high bits, so ballots of different proposers never clash
+ * and compare by round first.
+ */
+public class BallotGenerator {
+
+  private static final int PROPOSER_BITS = 16;
+  private static final long PROPOSER_MASK = (1L << PROPOSER_BITS) - 1;
+
+  private final long proposerId;
+  private final AtomicLong round;
+
+  /**
+   * @param proposerId identifier of the proposer, unique across the cluster, below 65536
+   */
+  public BallotGenerator(int proposerId) {
+    if (proposerId < 0 || proposerId > PROPOSER_MASK) {
+      throw new IllegalArgumentException("Proposer id out of range: " + proposerId);
+    }
+    this.proposerId = proposerId;
+    this.round = new AtomicLong();
+  }
+
+  /**
+   * Next ballot of this proposer, higher than every ballot it generated or observed before
+   * @return ballot
+   */
+  public long next() {
+    return (round.incrementAndGet() << PROPOSER_BITS) | proposerId;
+  }
+
+  /**
+   * Makes sure every ballot generated from now on is higher than the given one, such as a
+   * ballot of another proposer or one promised before a restart
+   * @param ballot ballot to outrank
+   */
+  public void observe(long ballot) {
+    if (ballot < 0) {
+      return;
+    }
+    long observed = roundOf(ballot);
+    round.accumulateAndGet(observed, Math::max);
+  }
+
+  public static long roundOf(long ballot) {
+    return ballot >>> PROPOSER_BITS;
+  }
+
+  public static int proposerOf(long ballot) {
+    return (int) (ballot & PROPOSER_MASK);
+  }
+}
@@ -1,14 +1,26 @@
 package paxos;
 
 import java.io.Serializable;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * Class to encapsulate an operation on the Key-Value store
  */
 public class Operation implements Serializable {
+  // Origin of an operation that has no request id yet
+  public static final int NO_ORIGIN = -1;
+
   private RequestMethod method;
   private int key;
   private String value;
+  // Value a CAS expects the key to hold, null for an absent key
+  private String expected;
+  private List<Operation> operations;
+  // Request id: the server that first proposed the operation and its sequence number there, or
+  // NO_ORIGIN until it is proposed
+  private int origin = NO_ORIGIN;
+  private long sequence;
 
   public Operation(RequestMethod method, int key, String value) {
     this.method = method;
@@ -22,6 +34,39 @@ public class Operation implements Serializable {
     this.value = null;
   }
 
+  /**
+   * Creates a batch of operations that is proposed and applied as a single value
+   * @param operations operations in the order they are applied
+   */
+  public Operation(List<Operation> operations) {
+    this(RequestMethod.BATCH, operations);
+  }
+
+  /**
+   * Creates an operation made of nested operations, applied at once in a single log slot
+   * @param method BATCH, MGET or MPUT
+   * @param operations nested operations in the order they are applied
+   */
+  public Operation(RequestMethod method, List<Operation> operations) {
+    this.method = method;
+    this.key = -1;
+    this.value = null;
+    this.operations = operations;
+  }
+
+  /**
+   * Creates a compare-and-set of a key
+   * @param key integer key
+   * @param expected value the key must hold, or null if it must be absent
+   * @param value new value
+   */
+  public Operation(int key, String expected, String value) {
+    this.method = RequestMethod.CAS;
+    this.key = key;
+    this.value = value;
+    this.expected = expected;
+  }
+
   public RequestMethod getMethod() {
     return method;
   }
@@ -45,4 +90,76 @@ public class Operation implements Serializable {
   public void setValue(String value) {
     this.value = value;
   }
+
+  public String getExpected() {
+    return expected;
+  }
+
+  public void setExpected(String expected) {
+    this.expected = expected;
+  }
+
+  public List<Operation> getOperations() {
+    return operations;
+  }
+
+  public void setOperations(List<Operation> operations) {
+    this.operations = operations;
+  }
+
+  public int getOrigin() {
+    return origin;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Gives the operation the id of the client request it carries out
+   * @param origin server that proposes the operation first
+   * @param sequence number of the request at that server, never reused
+   */
+  public void setRequestId(int origin, long sequence) {
+    this.origin = origin;
+    this.sequence = sequence;
+  }
+
+  public boolean hasRequestId() {
+    return origin != NO_ORIGIN;
+  }
+
+  /**
+   * Whether another operation carries out the same client request, which is how a proposer
+   * recognizes its own value after another proposer adopted it under a different ballot. Two
+   * requests with the same effect are different requests, and each must be applied.
+   * @param other operation to compare with, may be null
+   * @return true if both operations have the same request id
+   */
+  public boolean isSameRequest(Operation other) {
+    return other != null && hasRequestId() && origin == other.origin && sequence == other.sequence;
+  }
+
+  /**
+   * Operations are equal when they have the same effect, whatever request they come from
+   */
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof Operation)) {
+      return false;
+    }
+    Operation operation = (Operation) other;
+    return method == operation.method && key == operation.key
+            && Objects.equals(value, operation.value)
+            && Objects.equals(expected, operation.expected)
+            && Objects.equals(operations, operation.operations);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(method, key, value, expected, operations);
+  }
 }
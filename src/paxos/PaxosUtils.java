@@ -1,25 +1,65 @@
 package paxos;
 
 import java.io.Serializable;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Static class to generate proposals with unique IDs
  */
 public final class PaxosUtils implements Serializable {
 
-  private static int time = 0;
+  // Ends the length that prefixes each per-operation result of a batch in a learn result
+  private static final char LENGTH_END = ':';
 
-  public static synchronized Proposal createProposal(Operation operation){
-    int proposalId = time++;
+  // Ballots of proposals that only carry an operation to a coordinator, which proposes it under
+  // a ballot of its own; a coordinator's ballots carry its server id as the proposer id
+  private static final BallotGenerator ballots = new BallotGenerator(0);
 
-    Proposal proposal = new Proposal(proposalId, operation);
+  public static Proposal createProposal(Operation operation){
+    return new Proposal(ballots.next(), operation);
+  }
+
+  /**
+   * Joins the results of the operations of a batch into a single learn result. Each result is
+   * prefixed with its length, so results may hold any character.
+   * @param results result of each operation, in batch order
+   * @return joined result
+   */
+  public static String joinResults(List<String> results) {
+    StringBuilder joined = new StringBuilder();
+    for (String result : results) {
+      joined.append(result.length()).append(LENGTH_END).append(result);
+    }
+    return joined.toString();
+  }
 
-    try{
-      Thread.sleep(1);
-    } catch (InterruptedException e) {
-      System.out.println("Server error");
+  /**
+   * Splits a learn result of a batch back into the result of each operation
+   * @param result joined result
+   * @return result of each operation, in batch order, or null if the result is not a joined one,
+   *         such as the failure message of a batch that was not chosen
+   */
+  public static List<String> splitResults(String result) {
+    List<String> results = new ArrayList<>();
+    int position = 0;
+    while (position < result.length()) {
+      int end = result.indexOf(LENGTH_END, position);
+      if (end <= position) {
+        return null;
+      }
+      int length;
+      try {
+        length = Integer.parseInt(result, position, end, 10);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (length < 0 || length > result.length() - end - 1) {
+        return null;
+      }
+      position = end + 1 + length;
+      results.add(result.substring(end + 1, position));
     }
-    return proposal;
+    return results;
   }
 }
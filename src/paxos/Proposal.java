@@ -6,22 +6,42 @@ import java.io.Serializable;
  * Class to encapsulate an Proposal in the Paxos algorithm
  */
 public class Proposal implements Serializable {
-  private int id;
+  private long id;
+  private int slot;
   private Operation operation;
 
-  public Proposal(int id, Operation operation) {
+  public Proposal(long id, Operation operation) {
     this.id = id;
+    this.slot = -1;
     this.operation = operation;
   }
 
-  public int getId() {
+  public Proposal(long id, int slot, Operation operation) {
+    this.id = id;
+    this.slot = slot;
+    this.operation = operation;
+  }
+
+  public long getId() {
     return id;
   }
 
-  public void setId(int id) {
+  public void setId(long id) {
     this.id = id;
   }
 
+  /**
+   * Log instance this proposal is for
+   * @return slot index, or -1 if the proposal has not been assigned a slot yet
+   */
+  public int getSlot() {
+    return slot;
+  }
+
+  public void setSlot(int slot) {
+    this.slot = slot;
+  }
+
   public Operation getOperation() {
     return operation;
   }
@@ -8,5 +8,22 @@ import java.io.Serializable;
 public enum RequestMethod implements Serializable {
   GET,
   PUT,
-  DEL
+  DEL,
+  // Several client operations proposed as one value and applied atomically
+  BATCH,
+  // Fills a log slot whose original proposal could not be chosen
+  NOOP,
+  // Several GETs read at one point of the log
+  MGET,
+  // Several PUTs applied atomically as one client operation
+  MPUT,
+  // PUT applied only if the key holds the expected value
+  CAS;
+
+  /**
+   * @return true if operations of this method carry a list of nested operations
+   */
+  public boolean isComposite() {
+    return this == BATCH || this == MGET || this == MPUT;
+  }
 }
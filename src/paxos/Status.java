@@ -8,5 +8,7 @@ import java.io.Serializable;
 public enum Status implements Serializable {
   ACCEPTED,
   REJECTED,
-  PROMISED
+  PROMISED,
+  // The slot is applied and compacted; the proposal of the reply carries the last slot compacted
+  TRUNCATED
 }
@@ -0,0 +1,80 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import logging.Logger;
+
+/**
+ * Event loop of an acceptor. Every Paxos message that reads or changes acceptor state runs on
+ * one long-lived thread in arrival order, behind a bounded queue. When the queue is full,
+ * callers wait a short while for room and are then turned away, which the proposer sees as
+ * an acceptor that is not responding.
+ */
+public class AcceptorExecutor {
+
+  private static final Logger LOG = Logger.get(AcceptorExecutor.class);
+
+  private final ThreadPoolExecutor loop;
+  private final long timeoutMillis;
+
+  public AcceptorExecutor(String name) {
+    this(name, Integer.getInteger("paxos.acceptor.queueSize", 1024),
+            Long.getLong("paxos.acceptor.enqueueTimeoutMillis", 100),
+            Long.getLong("paxos.acceptor.timeoutMillis", 20000));
+  }
+
+  public AcceptorExecutor(String name, int queueSize, long enqueueTimeoutMillis, long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+    this.loop = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize), runnable -> {
+              Thread thread = new Thread(runnable, "acceptor-" + name);
+              thread.setDaemon(true);
+              return thread;
+            }, (task, executor) -> {
+              // Backpressure: give the loop a moment to drain before rejecting the message
+              try {
+                if (!executor.getQueue().offer(task, enqueueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                  throw new RejectedExecutionException("Acceptor queue is full");
+                }
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for the acceptor queue", e);
+              }
+            });
+  }
+
+  /**
+   * Runs a task on the event loop and waits for its result
+   * @param task task reading or changing acceptor state
+   * @return result of the task, or null if it was rejected, failed or timed out
+   */
+  public <T> T call(Callable<T> task) {
+    try {
+      Future<T> future = loop.submit(task);
+      return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      LOG.warn("Acceptor message failed: {}", e);
+      return null;
+    }
+  }
+
+  /**
+   * Stops the event loop; messages still queued are dropped
+   */
+  public void shutdown() {
+    loop.shutdownNow();
+  }
+
+  /**
+   * Number of messages waiting for the event loop
+   * @return queue length
+   */
+  public int getQueued() {
+    return loop.getQueue().size();
+  }
+}
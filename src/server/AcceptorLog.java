@@ -0,0 +1,416 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import paxos.BallotGenerator;
+import paxos.Promise;
+import paxos.Proposal;
+import paxos.Status;
+import storage.WriteAheadLog;
+import transport.MessageCodec;
+
+/**
+ * Per-slot acceptor state of the replicated log. Every slot keeps the highest ballot promised
+ * and the proposal accepted for it, and chosen slots are handed out for execution strictly in
+ * slot order. When a write-ahead log is given, every change to the promises, accepted and
+ * chosen proposals is appended to it; callers must sync the log before replying.
+ */
+public class AcceptorLog {
+
+  // Ballot value for a slot that has not promised anything yet
+  private static final long NONE = -1;
+  // How long a leader confirmed through readIndex is protected from competing leaders
+  private static final long LEASE_NANOS =
+          TimeUnit.MILLISECONDS.toNanos(Long.getLong("paxos.leaseMillis", 2000));
+  // Applied slots kept for lagging replicas when no snapshot compacts the log
+  private static final int RETAINED_SLOTS = Integer.getInteger("paxos.log.retainedSlots", 10000);
+  // Write-ahead log record types
+  private static final byte PROMISE = 1;
+  private static final byte PROMISE_FROM = 2;
+  private static final byte ACCEPT = 3;
+  private static final byte CHOSEN = 4;
+
+  /**
+   * State of a single log slot
+   */
+  public static class Entry {
+    private long promisedId = NONE;
+    private Proposal accepted;
+    private Proposal chosen;
+    private String result;
+
+    public Proposal getChosen() {
+      return chosen;
+    }
+
+    public String getResult() {
+      return result;
+    }
+
+    public void setResult(String result) {
+      this.result = result;
+    }
+  }
+
+  private final TreeMap<Integer, Entry> entries;
+  private final WriteAheadLog wal;
+  // Open-ended promise made by a Multi-Paxos leader for every slot from promisedFromSlot onwards
+  private int promisedFromSlot;
+  private long promisedFromId;
+  // Ballot of the last single-slot prepare promised, naming the proposer most recently active
+  private long lastPromisedId;
+  private int lastApplied;
+  private int highestAccepted;
+  // Leader lease granted to the ballot of the last confirmed Multi-Paxos leader
+  private long leaseBallot;
+  private long leaseExpiresAt;
+  // Slots up to this one are covered by a snapshot and no longer kept
+  private int truncatedUpTo;
+
+  public AcceptorLog() {
+    this(null);
+  }
+
+  public AcceptorLog(WriteAheadLog wal) {
+    this.entries = new TreeMap<>();
+    this.wal = wal;
+    this.promisedFromSlot = Integer.MAX_VALUE;
+    this.promisedFromId = NONE;
+    this.lastPromisedId = NONE;
+    this.lastApplied = -1;
+    this.highestAccepted = -1;
+    this.leaseBallot = NONE;
+    this.leaseExpiresAt = System.nanoTime();
+    this.truncatedUpTo = -1;
+  }
+
+  /**
+   * Prepare phase for the single slot of the proposal
+   * @param proposal proposal from a proposer
+   * @return a Promise including the status. A rejection carries the ballot promised instead,
+   *         and a slot already compacted is answered TRUNCATED with the last slot compacted.
+   */
+  public synchronized Promise prepare(Proposal proposal) {
+    int slot = proposal.getSlot();
+    if (slot <= truncatedUpTo) {
+      return new Promise(Status.TRUNCATED, new Proposal(NONE, truncatedUpTo, null));
+    }
+    if (proposal.getId() <= promised(slot)) {
+      return rejected(promised(slot), slot);
+    }
+    if (leasedToOther(proposal.getId())) {
+      return rejected(leaseBallot, slot);
+    }
+    Entry entry = entry(slot);
+    entry.promisedId = proposal.getId();
+    lastPromisedId = proposal.getId();
+    logPromise(PROMISE, slot, proposal.getId());
+    if (entry.accepted != null) {
+      return new Promise(Status.ACCEPTED, copy(entry.accepted));
+    }
+    return new Promise(Status.PROMISED, proposal);
+  }
+
+  /**
+   * Prepare phase for every slot from the proposal's slot onwards, used by a Multi-Paxos
+   * leader to skip phase 1 on later commands. Values accepted in those slots are not returned
+   * one by one: the promise reports the highest slot accepted, and the leader decides every
+   * slot up to it again with a single-slot prepare before proposing new commands.
+   * @param proposal proposal from a proposer
+   * @return a Promise including the status, ACCEPTED with the highest slot accepted if it is
+   *         not below the proposal's slot. A rejection carries the ballot promised instead.
+   */
+  public synchronized Promise prepareFrom(Proposal proposal) {
+    int from = proposal.getSlot();
+    for (Map.Entry<Integer, Entry> slot : entries.tailMap(from, true).entrySet()) {
+      if (proposal.getId() <= promised(slot.getKey())) {
+        return rejected(promised(slot.getKey()), from);
+      }
+    }
+    // Open-ended ranges always overlap, so an older open promise must be strictly lower
+    if (proposal.getId() <= promisedFromId) {
+      return rejected(promisedFromId, from);
+    }
+    if (leasedToOther(proposal.getId())) {
+      return rejected(leaseBallot, from);
+    }
+
+    promisedFromSlot = Math.min(promisedFromSlot, from);
+    promisedFromId = proposal.getId();
+    logPromise(PROMISE_FROM, from, proposal.getId());
+    for (Entry entry : entries.tailMap(from, true).values()) {
+      entry.promisedId = proposal.getId();
+    }
+    if (highestAccepted >= from) {
+      return new Promise(Status.ACCEPTED, new Proposal(proposal.getId(), highestAccepted, null));
+    }
+    return new Promise(Status.PROMISED, proposal);
+  }
+
+  /**
+   * Accept phase for the slot of the proposal
+   * @param proposal proposal from a proposer
+   * @return true if the proposal was accepted
+   */
+  public synchronized boolean accept(Proposal proposal) {
+    int slot = proposal.getSlot();
+    // A Multi-Paxos leader keeps reusing its ballot, so accept anything not below the promise
+    if (slot <= truncatedUpTo || proposal.getId() < promised(slot) || leasedToOther(proposal.getId())) {
+      return false;
+    }
+    Entry entry = entry(slot);
+    entry.promisedId = proposal.getId();
+    entry.accepted = copy(proposal);
+    highestAccepted = Math.max(highestAccepted, slot);
+    logProposal(ACCEPT, entry.accepted);
+    return true;
+  }
+
+  /**
+   * Records the proposal as chosen for its slot
+   * @param proposal chosen proposal
+   * @return the entry of the slot
+   */
+  public synchronized Entry choose(Proposal proposal) {
+    if (proposal.getSlot() <= truncatedUpTo) {
+      // Already applied and covered by a snapshot
+      return new Entry();
+    }
+    Entry entry = entry(proposal.getSlot());
+    if (entry.chosen == null) {
+      entry.chosen = copy(proposal);
+      logProposal(CHOSEN, entry.chosen);
+    }
+    highestAccepted = Math.max(highestAccepted, proposal.getSlot());
+    return entry;
+  }
+
+  /**
+   * Marks the chosen entries that directly follow the last applied slot as applied. Callers
+   * must execute them in the returned order. With a write-ahead log, applied entries stay until
+   * a snapshot compacts them; without one, only the last applied slots are kept, so that
+   * lagging replicas can still fetch them, and older ones are dropped.
+   * @return entries ready to execute, in slot order
+   */
+  public synchronized List<Entry> takeReady() {
+    List<Entry> ready = new ArrayList<>();
+    Entry next = entries.get(lastApplied + 1);
+    while (next != null && next.chosen != null) {
+      ready.add(next);
+      lastApplied += 1;
+      next = entries.get(lastApplied + 1);
+    }
+    if (wal == null && lastApplied - truncatedUpTo >= 2 * RETAINED_SLOTS) {
+      // Dropped in batches so that the cost is spread over many slots
+      int upToSlot = lastApplied - RETAINED_SLOTS;
+      entries.headMap(upToSlot, true).clear();
+      truncatedUpTo = upToSlot;
+    }
+    return ready;
+  }
+
+  /**
+   * Chosen proposals in the slot range [fromSlot, toSlot]
+   * @param fromSlot first slot, inclusive
+   * @param toSlot last slot, inclusive
+   * @return chosen proposals in slot order, stopping at the first slot not chosen yet
+   */
+  public synchronized List<Proposal> getChosen(int fromSlot, int toSlot) {
+    List<Proposal> chosen = new ArrayList<>();
+    for (int slot = fromSlot; slot <= toSlot; slot++) {
+      Entry entry = entries.get(slot);
+      if (entry == null || entry.chosen == null) {
+        break;
+      }
+      chosen.add(copy(entry.chosen));
+    }
+    return chosen;
+  }
+
+  /**
+   * Read index confirmation. Reports the highest slot this acceptor has accepted, which covers
+   * every write a quorum has accepted once a quorum of acceptors has answered. When a
+   * Multi-Paxos leader ballot is given, it is confirmed and granted a lease, or rejected if a
+   * higher ballot has been promised since or another leader holds the lease.
+   * @param ballot leader ballot to confirm, or a negative value for a leaderless read
+   * @return highest accepted slot, or PaxosServer.SUPERSEDED if the ballot was superseded
+   */
+  public synchronized int readIndex(long ballot) {
+    if (ballot >= 0) {
+      if (ballot < promisedFromId || leasedToOther(ballot)) {
+        return PaxosServer.SUPERSEDED;
+      }
+      leaseBallot = ballot;
+      leaseExpiresAt = System.nanoTime() + LEASE_NANOS;
+    }
+    return highestAccepted;
+  }
+
+  /**
+   * Whether another proposer's leader holds an unexpired lease. Nothing else may be promised or
+   * accepted meanwhile, or a value could be chosen that the lease holder's local reads do not
+   * see. Other ballots of the lease holder's own proposer are let through: its values are
+   * chosen through the holder itself, which stops reading locally once it steps down.
+   */
+  private boolean leasedToOther(long ballot) {
+    return leaseBallot != NONE && BallotGenerator.proposerOf(ballot) != BallotGenerator.proposerOf(leaseBallot)
+            && System.nanoTime() - leaseExpiresAt < 0;
+  }
+
+  /**
+   * Ballot of the leader as far as this acceptor knows: the lease holder while its lease lasts,
+   * otherwise the last ballot promised every slot from some slot onwards. Without Multi-Paxos,
+   * the ballot of the last single-slot prepare promised stands in for it.
+   * @return ballot, or -1 if nothing was promised since the start
+   */
+  public synchronized long getLeaderBallot() {
+    if (leaseBallot != NONE && System.nanoTime() - leaseExpiresAt < 0) {
+      return leaseBallot;
+    }
+    return promisedFromId != NONE ? promisedFromId : lastPromisedId;
+  }
+
+  public synchronized int getLastApplied() {
+    return lastApplied;
+  }
+
+  public synchronized int getHighestAccepted() {
+    return highestAccepted;
+  }
+
+  /**
+   * Highest ballot this acceptor has promised for any slot
+   * @return ballot, or -1 if nothing was promised
+   */
+  public synchronized long getHighestPromised() {
+    long highest = promisedFromId;
+    for (Entry entry : entries.values()) {
+      highest = Math.max(highest, entry.promisedId);
+    }
+    return highest;
+  }
+
+  /**
+   * Moves the log to a snapshot that covers every slot up to the given one, either restored
+   * from disk or received from a peer
+   * @param snapshotSlot last slot applied in the snapshot
+   */
+  public synchronized void installSnapshot(int snapshotSlot) {
+    entries.headMap(snapshotSlot, true).clear();
+    lastApplied = snapshotSlot;
+    truncatedUpTo = snapshotSlot;
+    highestAccepted = Math.max(highestAccepted, snapshotSlot);
+  }
+
+  /**
+   * Restores a record read back from the write-ahead log
+   * @param type record type
+   * @param payload record payload
+   * @throws IOException if the record is malformed
+   */
+  public synchronized void restore(byte type, ByteBuffer payload) throws IOException {
+    if (type == PROMISE || type == PROMISE_FROM) {
+      int slot = payload.getInt();
+      long id = payload.getLong();
+      if (type == PROMISE_FROM) {
+        promisedFromSlot = Math.min(promisedFromSlot, slot);
+        promisedFromId = Math.max(promisedFromId, id);
+      } else if (slot > truncatedUpTo) {
+        Entry entry = entry(slot);
+        entry.promisedId = Math.max(entry.promisedId, id);
+      }
+      return;
+    }
+    Proposal proposal = MessageCodec.readProposal(payload);
+    if (proposal.getSlot() <= truncatedUpTo) {
+      return;
+    }
+    Entry entry = entry(proposal.getSlot());
+    if (type == ACCEPT) {
+      // Records are replayed in the order they were accepted in
+      entry.accepted = proposal;
+      entry.promisedId = Math.max(entry.promisedId, proposal.getId());
+    } else if (type == CHOSEN && entry.chosen == null) {
+      entry.chosen = proposal;
+    }
+    highestAccepted = Math.max(highestAccepted, proposal.getSlot());
+  }
+
+  /**
+   * Drops the slots up to the given one once a snapshot covers them. The write-ahead log moves
+   * on to a new segment that starts with the state of every slot kept, so that the segments
+   * before it can be deleted once the snapshot is on disk.
+   * @param upToSlot last slot covered by the snapshot, no higher than the last applied slot
+   * @return first segment of the write-ahead log that must be kept
+   * @throws IOException if the write-ahead log cannot move to a new segment
+   */
+  public synchronized int compact(int upToSlot) throws IOException {
+    entries.headMap(upToSlot, true).clear();
+    truncatedUpTo = Math.max(truncatedUpTo, upToSlot);
+    if (wal == null) {
+      return 0;
+    }
+    int segment = wal.roll();
+    if (promisedFromId != NONE) {
+      logPromise(PROMISE_FROM, promisedFromSlot, promisedFromId);
+    }
+    for (Map.Entry<Integer, Entry> slot : entries.entrySet()) {
+      Entry entry = slot.getValue();
+      if (entry.promisedId != NONE) {
+        logPromise(PROMISE, slot.getKey(), entry.promisedId);
+      }
+      if (entry.accepted != null) {
+        logProposal(ACCEPT, entry.accepted);
+      }
+      if (entry.chosen != null) {
+        logProposal(CHOSEN, entry.chosen);
+      }
+    }
+    return segment;
+  }
+
+  private void logPromise(byte type, int slot, long id) {
+    if (wal != null) {
+      wal.append(type, frame -> {
+        frame.putInt(slot);
+        frame.putLong(id);
+      });
+    }
+  }
+
+  private void logProposal(byte type, Proposal proposal) {
+    if (wal != null) {
+      wal.append(type, frame -> MessageCodec.writeProposal(frame, proposal));
+    }
+  }
+
+  /**
+   * Rejection carrying the ballot that outranks the proposal, so the proposer can retry above it
+   */
+  private static Promise rejected(long promisedId, int slot) {
+    return new Promise(Status.REJECTED, new Proposal(promisedId, slot, null));
+  }
+
+  private long promised(int slot) {
+    Entry entry = entries.get(slot);
+    long promised = entry == null ? NONE : entry.promisedId;
+    if (slot >= promisedFromSlot) {
+      promised = Math.max(promised, promisedFromId);
+    }
+    return promised;
+  }
+
+  private Entry entry(int slot) {
+    return entries.computeIfAbsent(slot, s -> new Entry());
+  }
+
+  private static Proposal copy(Proposal proposal) {
+    return new Proposal(proposal.getId(), proposal.getSlot(), proposal.getOperation());
+  }
+}
@@ -0,0 +1,176 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+import coordinator.PaxosCoordinator;
+import logging.Logger;
+import paxos.Operation;
+import paxos.Proposal;
+import storage.SnapshotChunk;
+import storage.StorageEngine;
+
+/**
+ * State transfer for a replica that missed learn messages. The missing log range is fetched
+ * from the most advanced peer and applied in order; a replica too far behind for the log, or
+ * behind a peer's snapshot, streams a chunked copy of the peer's key-value store instead and
+ * then continues from the log. Transfers run on a background thread behind a rate limiter.
+ */
+public class CatchUp {
+
+  private static final Logger LOG = Logger.get(CatchUp.class);
+
+  // Slots fetched from a peer per call
+  private static final int BATCH_SLOTS = Integer.getInteger("paxos.catchup.batchSlots", 256);
+  // Entries of the key-value store per snapshot chunk
+  private static final int CHUNK_ENTRIES = Integer.getInteger("paxos.catchup.chunkEntries", 4096);
+  // Lag after which a snapshot is streamed instead of the log
+  private static final int MAX_LOG_SLOTS = Integer.getInteger("paxos.catchup.maxLogSlots", 100000);
+  // Grace period for learn messages that are merely out of order
+  private static final long DELAY_MILLIS = Long.getLong("paxos.catchup.delayMillis", 200);
+  private static final long BYTES_PER_SECOND = Long.getLong("paxos.catchup.bytesPerSecond", 4L * 1024 * 1024);
+
+  private final KeyValueStoreServer replica;
+  private final PaxosCoordinator coordinator;
+  private final RateLimiter limiter;
+  private boolean requested;
+  private final Thread thread;
+
+  public CatchUp(KeyValueStoreServer replica, PaxosCoordinator coordinator, String name) {
+    this.replica = replica;
+    this.coordinator = coordinator;
+    this.limiter = new RateLimiter(BYTES_PER_SECOND);
+    this.requested = false;
+    this.thread = new Thread(this::run, "catch-up-" + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Asks for a catch-up round, which starts after a short grace period. Requests made while a
+   * round is pending are merged into it.
+   */
+  public synchronized void request() {
+    requested = true;
+    notifyAll();
+  }
+
+  /**
+   * Stops the catch-up thread, abandoning a round in progress
+   */
+  public void shutdown() {
+    thread.interrupt();
+  }
+
+  private void run() {
+    while (true) {
+      try {
+        synchronized (this) {
+          while (!requested) {
+            wait();
+          }
+        }
+        Thread.sleep(DELAY_MILLIS);
+        synchronized (this) {
+          requested = false;
+        }
+        catchUp();
+      } catch (InterruptedException e) {
+        return;
+      } catch (RemoteException e) {
+        LOG.warn("Server {}: catch-up failed: {}", replica.getServerId(), e.getMessage());
+      }
+    }
+  }
+
+  private void catchUp() throws RemoteException, InterruptedException {
+    int start = replica.getLastApplied();
+    PaxosServer peer = null;
+    int target = start;
+    for (PaxosServer candidate : coordinator.getReplicas()) {
+      if (candidate.getServerId() == replica.getServerId()) {
+        continue;
+      }
+      int applied = candidate.getLastApplied();
+      if (applied > target) {
+        target = applied;
+        peer = candidate;
+      }
+    }
+    if (peer == null) {
+      return;
+    }
+
+    boolean transferred = false;
+    if (target - start > MAX_LOG_SLOTS) {
+      transferSnapshot(peer);
+      transferred = true;
+    }
+    while (replica.getLastApplied() < target) {
+      int from = replica.getLastApplied() + 1;
+      List<Proposal> chosen = peer.getChosen(from, Math.min(target, from + BATCH_SLOTS - 1));
+      if (chosen.isEmpty()) {
+        // The peer no longer has the log this far back
+        transferSnapshot(peer);
+        chosen = peer.getChosen(replica.getLastApplied() + 1,
+                Math.min(target, replica.getLastApplied() + BATCH_SLOTS));
+        if (chosen.isEmpty()) {
+          break;
+        }
+      }
+      long bytes = 0;
+      for (Proposal proposal : chosen) {
+        bytes += estimateBytes(proposal.getOperation());
+      }
+      limiter.acquire(bytes);
+      replica.applyChosen(chosen);
+      transferred = true;
+    }
+    if (transferred) {
+      LOG.info("Server {} caught up from slot {} to slot {} from server {}", replica.getServerId(), start,
+              replica.getLastApplied(), peer.getServerId());
+    }
+  }
+
+  private void transferSnapshot(PaxosServer peer) throws RemoteException, InterruptedException {
+    StorageEngine store = StorageEngine.create();
+    SnapshotChunk chunk = peer.getSnapshotChunk(-1, 0, CHUNK_ENTRIES);
+    while (chunk != null) {
+      long bytes = 0;
+      for (int i = 0; i < chunk.getKeys().length; i++) {
+        store.put(chunk.getKeys()[i], chunk.getValues()[i]);
+        bytes += Integer.BYTES + chunk.getValues()[i].length();
+      }
+      limiter.acquire(bytes);
+      if (chunk.isLast()) {
+        replica.installSnapshot(chunk.getSlot(), store);
+        LOG.info("Server {} installed a snapshot at slot {} with {} keys", replica.getServerId(),
+                chunk.getSlot(), store.size());
+        return;
+      }
+      int offset = chunk.getOffset() + chunk.getKeys().length;
+      chunk = peer.getSnapshotChunk(chunk.getSlot(), offset, CHUNK_ENTRIES);
+    }
+    // The peer replaced the snapshot during the transfer; the next round starts over
+    LOG.warn("Server {}: snapshot transfer interrupted", replica.getServerId());
+  }
+
+  private static long estimateBytes(Operation operation) {
+    if (operation == null) {
+      return 0;
+    }
+    long bytes = Integer.BYTES + 1;
+    if (operation.getValue() != null) {
+      bytes += operation.getValue().length();
+    }
+    if (operation.getExpected() != null) {
+      bytes += operation.getExpected().length();
+    }
+    if (operation.getOperations() != null) {
+      for (Operation batched : operation.getOperations()) {
+        bytes += estimateBytes(batched);
+      }
+    }
+    return bytes;
+  }
+}
@@ -1,167 +1,670 @@
 package server;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.AlreadyBoundException;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import coordinator.ClusterConfig;
+import coordinator.CommandBatcher;
 import coordinator.Coordinator;
 import coordinator.PaxosCoordinator;
+import coordinator.ShardMap;
+import logging.Logger;
+import metrics.Counter;
+import metrics.LatencyHistogram;
+import metrics.MetricGroup;
+import metrics.Metrics;
+import paxos.BallotGenerator;
 import paxos.Operation;
 import paxos.Promise;
 import paxos.Proposal;
 import paxos.RequestMethod;
 import paxos.Status;
 import service.RpcService;
+import service.ScanResult;
+import storage.SnapshotChunk;
+import storage.SnapshotStore;
+import storage.StorageEngine;
+import storage.WriteAheadLog;
+import transport.NioTransportServer;
+import transport.Transports;
 
 import static paxos.PaxosUtils.createProposal;
+import static paxos.PaxosUtils.joinResults;
+import static paxos.PaxosUtils.splitResults;
 
 /**
- * A multi-threaded server that implements the Key-Value Store.
+ * A multi-threaded server that implements the Key-Value Store. Each instance is the replica of
+ * one shard; a server process hosts one instance per shard behind a ShardRouter.
  */
 public class KeyValueStoreServer implements PaxosServer, Serializable {
 
-  private int maxId;
-  private Proposal acceptedProposal;
-  private final Map<Integer, String> keyValueStore;
+  private static final Logger LOG = Logger.get(KeyValueStoreServer.class);
+
+  // How long a local read waits for this replica to apply up to the read index
+  private static final long READ_TIMEOUT_MILLIS = Long.getLong("paxos.readTimeoutMillis", 1000);
+  // Directory of the write-ahead logs and snapshots; state is kept in memory only when unset
+  private static final String WAL_DIR = System.getProperty("paxos.wal.dir");
+  private static final boolean WAL_MMAP = Boolean.getBoolean("paxos.wal.mmap");
+  private static final long WAL_SEGMENT_BYTES = Long.getLong("paxos.wal.segmentBytes", 64L * 1024 * 1024);
+  private static final int SNAPSHOT_EVERY_SLOTS = Integer.getInteger("paxos.snapshot.everySlots", 10000);
+  // How long a copy of the store made for a snapshot transfer is offered to further replicas
+  private static final long TRANSFER_REUSE_MILLIS = 30000;
+  // RMI only holds exported objects weakly, so the routers are kept reachable from here
+  private static final List<ShardRouter> ROUTERS = new ArrayList<>();
+
+  /**
+   * Point-in-time copy of the store served to lagging replicas in chunks, in key order
+   */
+  private static class TransferSnapshot {
+    private final int slot;
+    private final StorageEngine store;
+    private final int[] keys;
+    private final long createdAt;
+
+    TransferSnapshot(int slot, StorageEngine store) {
+      this.slot = slot;
+      this.store = store;
+      this.keys = new int[store.size()];
+      int[] next = {0};
+      store.forEach((key, value) -> keys[next[0]++] = key);
+      Arrays.sort(keys);
+      this.createdAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Entries of a key range as of one point of the log, read page by page from the live store.
+   * Nothing is copied up front: a write to a key the scan has not passed yet first preserves the
+   * value the key held at that point, so each page costs only its own entries under the apply
+   * lock and memory grows with the writes into the range rather than with the range.
+   */
+  private class RangeSnapshot implements ScanCursors.Cursor {
+    private final int to;
+    // First key of the next page
+    private int nextKey;
+    private boolean exhausted;
+    // Value at the snapshot point of each key written since, empty if it was absent; guarded
+    // by applyLock like the rest of the fields
+    private final TreeMap<Integer, Optional<String>> preserved;
+    private boolean invalidated;
+
+    RangeSnapshot(int from, int to) {
+      this.to = to;
+      this.nextKey = from;
+      this.exhausted = from >= to;
+      this.preserved = new TreeMap<>();
+      this.invalidated = false;
+    }
+
+    /**
+     * Keeps the value a key holds before it is written. Called under the apply lock.
+     */
+    void preserve(int key) {
+      if (key >= nextKey && key < to && !preserved.containsKey(key)) {
+        preserved.put(key, Optional.ofNullable(keyValueStore.get(key)));
+      }
+    }
+
+    /**
+     * Stops the scan because the store it reads was replaced. Called under the apply lock.
+     */
+    void invalidate() {
+      invalidated = true;
+      preserved.clear();
+    }
+
+    @Override
+    public ScanResult next(int limit) throws RemoteException {
+      synchronized (applyLock) {
+        if (invalidated) {
+          throw new RemoteException("Server " + serverId + " installed a snapshot of shard " + shard
+                  + " during the scan; start the scan again");
+        }
+        // One entry beyond the page tells whether another page follows
+        int capacity = limit == Integer.MAX_VALUE ? limit : limit + 1;
+        RangePage live = new RangePage(capacity);
+        if (!exhausted) {
+          // Keys written since the snapshot point are read from their preserved values instead
+          keyValueStore.scan(nextKey, to, (key, value) -> {
+            if (!preserved.containsKey(key)) {
+              live.add(key, value);
+            }
+            return !live.isFull();
+          });
+        }
+        // Preserved values up to the last live entry read, or to the end of the range
+        Map<Integer, Optional<String>> kept = live.isFull()
+                ? preserved.subMap(nextKey, true, live.keys[live.size - 1], true)
+                : preserved.tailMap(nextKey, true);
+        RangePage page = new RangePage(capacity);
+        int position = 0;
+        for (Map.Entry<Integer, Optional<String>> entry : kept.entrySet()) {
+          if (!entry.getValue().isPresent()) {
+            continue;
+          }
+          while (position < live.size && live.keys[position] < entry.getKey() && !page.isFull()) {
+            page.add(live.keys[position], live.values[position]);
+            position += 1;
+          }
+          if (page.isFull()) {
+            break;
+          }
+          page.add(entry.getKey(), entry.getValue().get());
+        }
+        while (position < live.size && !page.isFull()) {
+          page.add(live.keys[position], live.values[position]);
+          position += 1;
+        }
+
+        if (page.size > limit) {
+          nextKey = page.keys[limit];
+        } else {
+          close();
+        }
+        // Keys the scan has passed are no longer written into the snapshot
+        preserved.headMap(nextKey).clear();
+        int size = Math.min(page.size, limit);
+        return new ScanResult(ScanResult.NO_CURSOR, Arrays.copyOf(page.keys, size),
+                Arrays.copyOf(page.values, size));
+      }
+    }
+
+    @Override
+    public boolean exhausted() {
+      synchronized (applyLock) {
+        return exhausted;
+      }
+    }
+
+    @Override
+    public void close() {
+      synchronized (applyLock) {
+        exhausted = true;
+        preserved.clear();
+        openScans.remove(this);
+      }
+    }
+  }
+
+  /**
+   * Entries of one page of a scan, in key order
+   */
+  private static class RangePage {
+    private final int capacity;
+    private int[] keys;
+    private String[] values;
+    private int size;
+
+    RangePage(int capacity) {
+      this.capacity = capacity;
+      this.keys = new int[Math.min(capacity, 256)];
+      this.values = new String[keys.length];
+      this.size = 0;
+    }
+
+    void add(int key, String value) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, (int) Math.min(capacity, 2L * size));
+        values = Arrays.copyOf(values, keys.length);
+      }
+      keys[size] = key;
+      values[size] = value;
+      size += 1;
+    }
+
+    boolean isFull() {
+      return size == capacity;
+    }
+  }
+
+  private final AcceptorLog acceptorLog;
+  private final WriteAheadLog wal;
+  private final SnapshotStore snapshots;
+  // Writes snapshots off the learn path
+  private final ExecutorService snapshotter;
+  // Last slot covered by a snapshot that was written or is being written, guarded by applyLock
+  private int snapshotSlot;
+  // Fetches missed slots or a snapshot from peers
+  private final CatchUp catchUp;
+  private volatile TransferSnapshot outgoing;
+  // Runs acceptor messages one at a time without a thread per message
+  private final AcceptorExecutor acceptorExecutor;
+  // Serializes applying chosen slots so that they reach the key-value store in slot order
+  private final Object applyLock;
+  private final StorageEngine keyValueStore;
+  // Range scans with more pages to read, and the snapshots among them that preserve the values
+  // written into their range, guarded by applyLock
+  private final ScanCursors scans;
+  private final List<RangeSnapshot> openScans;
   private final PaxosCoordinator cd;
+  // Coalesces PUT and DELETE requests into batched proposals
+  private final CommandBatcher batcher;
   private final int serverId;
+  private final int shard;
   private final int port;
-
-  public KeyValueStoreServer(PaxosCoordinator coordinator, int serverId, int port) throws RemoteException {
+  // Time up to which every committed write is known to have been applied by this replica
+  private volatile long freshAsOf;
+  private final LatencyHistogram applyLatency;
+  private final LatencyHistogram walSyncLatency;
+  // Linearizable reads that could not be served locally
+  private final Counter consensusReads;
+  private final Counter forwardedBatches;
+
+  public KeyValueStoreServer(PaxosCoordinator coordinator, int serverId, int shard, int port)
+          throws RemoteException {
     super();
-    maxId = 0;
-    acceptedProposal = null;
+    this.serverId = serverId;
+    this.shard = shard;
+    // Storage engine selected by paxos.storage, safe for concurrent reads
+    keyValueStore = StorageEngine.create();
+    scans = new ScanCursors();
+    openScans = new ArrayList<>();
+    applyLock = new Object();
+    snapshotSlot = -1;
+    if (WAL_DIR != null) {
+      Path dir = Paths.get(WAL_DIR, "server" + serverId, "shard" + shard);
+      try {
+        wal = new WriteAheadLog(dir, WAL_MMAP, WAL_SEGMENT_BYTES);
+        snapshots = new SnapshotStore(dir);
+        acceptorLog = new AcceptorLog(wal);
+        recover();
+      } catch (IOException e) {
+        throw new RemoteException("Could not recover server " + serverId + " from " + dir, e);
+      }
+      snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshot-" + serverId + "-" + shard);
+        thread.setDaemon(true);
+        return thread;
+      });
+    } else {
+      wal = null;
+      snapshots = null;
+      snapshotter = null;
+      acceptorLog = new AcceptorLog();
+    }
+    acceptorExecutor = new AcceptorExecutor(serverId + "-" + shard);
     this.port = port;
+    freshAsOf = 0;
     cd = coordinator;
-    this.serverId = serverId;
-    // Register server into coordinator
-    cd.registerNewServer(this);
-    // Concurrent hashmap so that server can handle concurrent requests
-    keyValueStore = new ConcurrentHashMap<>();
+    // Proposals of this replica must outrank the promises made before a restart
+    cd.observeBallot(acceptorLog.getHighestPromised());
+    batcher = new CommandBatcher(this::proposeWrites);
+    catchUp = new CatchUp(this, coordinator, serverId + "-" + shard);
+
+    MetricGroup metrics = Metrics.group("Replica", "server", String.valueOf(serverId), "shard",
+            String.valueOf(shard));
+    applyLatency = metrics.histogram("apply");
+    walSyncLatency = metrics.histogram("walSync");
+    consensusReads = metrics.counter("consensusReads");
+    forwardedBatches = metrics.counter("forwardedBatches");
+    metrics.gauge("leader", () -> cd.isLeader() ? 1 : 0);
+    metrics.gauge("leaderId", this::getLeaderId);
+    metrics.gauge("storeSize", keyValueStore::size);
+    metrics.gauge("lastApplied", acceptorLog::getLastApplied);
+    // Slots this replica accepted but has not applied yet
+    metrics.gauge("applyLag", () -> Math.max(0, acceptorLog.getHighestAccepted() - acceptorLog.getLastApplied()));
+    metrics.gauge("freshnessLagMillis", () -> freshAsOf == 0 ? 0 : System.currentTimeMillis() - freshAsOf);
+    metrics.gauge("acceptorQueue", acceptorExecutor::getQueued);
+  }
+
+  /**
+   * Rebuilds the key-value store and the acceptor state from the last snapshot and the
+   * write-ahead log written since
+   */
+  private void recover() throws IOException {
+    int snapshot = snapshots.load(keyValueStore);
+    if (snapshot >= 0) {
+      acceptorLog.installSnapshot(snapshot);
+      snapshotSlot = snapshot;
+    }
+    wal.replay(acceptorLog::restore);
+    for (AcceptorLog.Entry entry : acceptorLog.takeReady()) {
+      entry.setResult(apply(entry.getChosen().getOperation()));
+    }
+    if (acceptorLog.getLastApplied() >= 0) {
+      LOG.info("Server {} recovered shard {} up to slot {}", serverId, shard, acceptorLog.getLastApplied());
+    }
   }
 
   public int getPort() {
     return port;
   }
 
+  /**
+   * Stops the threads of the replica and lets a snapshot being written finish. Its
+   * coordinator, which replicas of a benchmark may share, is stopped separately.
+   */
+  public void shutdown() {
+    batcher.shutdown();
+    catchUp.shutdown();
+    acceptorExecutor.shutdown();
+    scans.shutdown();
+    if (snapshotter != null) {
+      snapshotter.shutdown();
+    }
+  }
+
   @Override
-  public Promise prepare(Proposal proposal) {
-    System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-            + " Server " + serverId + ": Received a Prepare message");
-    if (Math.random() < 0.01) {
-      System.out.println("Server " + serverId + ": Server Failure");
-      return null;
+  public int getServerId() {
+    return serverId;
+  }
+
+  @Override
+  public int getLeader(int key) {
+    return getLeaderId();
+  }
+
+  /**
+   * Server of the leader of this shard. Leadership is the coordinator's own, or else that of
+   * the ballot this replica's acceptor names as the leader's; the proposer id of a
+   * coordinator's ballots is its server id. Until a leader is known, or while the known one is
+   * down, the replicas agree on the first live replica.
+   * @return server id, or -1 if every replica is down
+   */
+  @Override
+  public int getLeaderId() {
+    if (cd.isLeader()) {
+      return serverId;
     }
-    ExecutorService executorService = Executors.newSingleThreadExecutor();
-    FutureTask<Promise> future = new FutureTask<>(new Callable<Promise>() {
-      @Override
-      public Promise call() throws Exception {
-        if(maxId == 0){
-          KeyValueStoreServer.this.maxId = proposal.getId();
-          return new Promise(Status.PROMISED, proposal);
-        }
-        else if (proposal.getId() <= KeyValueStoreServer.this.maxId) {
-          return new Promise(Status.REJECTED, null);
-        } else {
-          KeyValueStoreServer.this.maxId = proposal.getId();
-          if (KeyValueStoreServer.this.acceptedProposal != null) {
-            return new Promise(Status.ACCEPTED, new
-                    Proposal(KeyValueStoreServer.this.acceptedProposal.getId(),
-                    KeyValueStoreServer.this.acceptedProposal.getOperation()));
-          } else {
-            return new Promise(Status.PROMISED, proposal);
-          }
-        }
+    long ballot = acceptorLog.getLeaderBallot();
+    if (ballot >= 0 && cd.getReplica(BallotGenerator.proposerOf(ballot)) != null) {
+      return BallotGenerator.proposerOf(ballot);
+    }
+    return cd.getFirstLive();
+  }
+
+  /**
+   * Replica of another server that leads this shard
+   * @return stub of the leader, or null if this replica leads or every replica is down
+   */
+  private PaxosServer leader() {
+    int leader = getLeaderId();
+    return leader < 0 || leader == serverId ? null : cd.getReplica(leader);
+  }
+
+  @Override
+  public String propose(Operation operation) throws RemoteException {
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received forwarded writes", serverId);
+    }
+    return cd.executeOperation(createProposal(operation));
+  }
+
+  /**
+   * Proposes a write or a batch of writes collected by the batcher. While another replica leads
+   * the shard, the batch is forwarded there, so that writes are proposed by the replica that
+   * holds leadership and the read lease, and its rounds are not spent competing with the other
+   * replicas' proposals. Without a known leader, such as before the first write, the batch goes
+   * to the first live replica, whose coordinator then runs for leadership.
+   * @param operation write or batch of writes
+   * @return result of the operation
+   * @throws RemoteException if the writes could not be proposed
+   */
+  private String proposeWrites(Operation operation) throws RemoteException {
+    PaxosServer leader = leader();
+    if (leader != null) {
+      try {
+        String result = leader.propose(operation);
+        forwardedBatches.increment();
+        return result;
+      } catch (ConnectException | NoSuchObjectException e) {
+        // The call never reached the leader, so proposing here cannot apply the writes twice
+        LOG.debug("Server {}: leader unreachable, proposing locally: {}", serverId, e.getMessage());
       }
-    });
+    }
+    return cd.executeOperation(createProposal(operation));
+  }
 
-    try {
-      executorService.submit(future);
-      return future.get(20, TimeUnit.SECONDS);
-    } catch (Exception e) {
-      System.out.println("Error");
+  @Override
+  public Promise prepare(Proposal proposal) {
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received a Prepare message", serverId);
+    }
+    if (Math.random() < 0.01) {
+      LOG.debug("Server {}: Server Failure", serverId);
       return null;
     }
+    return durable(acceptorExecutor.call(() -> acceptorLog.prepare(proposal)));
   }
 
   @Override
   public Boolean accept(Proposal proposal) {
-    System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-            + " Server " + serverId + ": Received a Accept message");
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received a Accept message", serverId);
+    }
     if (Math.random() < 0.01) {
-      System.out.println("Server " + serverId + ": Server Failure");
+      LOG.debug("Server {}: Server Failure", serverId);
       return null;
     }
 
-    ExecutorService executorService = Executors.newSingleThreadExecutor();
-    FutureTask<Boolean> future = new FutureTask<>(new Callable<Boolean>() {
-      @Override
-      public Boolean call() throws Exception {
-        if (proposal.getId() != KeyValueStoreServer.this.maxId) {
-          return Boolean.FALSE;
-        }
+    return durable(acceptorExecutor.call(() -> acceptorLog.accept(proposal)));
+  }
 
-        if (acceptedProposal == null) {
-          acceptedProposal = new Proposal(proposal.getId(), proposal.getOperation());
-        } else {
-          acceptedProposal.setId(proposal.getId());
-          acceptedProposal.setOperation(proposal.getOperation());
-        }
-        return Boolean.TRUE;
+  @Override
+  public Promise prepareFrom(Proposal proposal) {
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received a Prepare message from slot {}", serverId, proposal.getSlot());
+    }
+    return durable(acceptorExecutor.call(() -> acceptorLog.prepareFrom(proposal)));
+  }
+
+  /**
+   * Holds back an acceptor reply until the state change behind it is on disk. This runs on the
+   * caller's thread rather than the acceptor loop, so the replies of every message handled
+   * while the previous fsync was running share the next one.
+   * @param reply reply of the acceptor
+   * @return the reply, or null if the write-ahead log could not be written
+   */
+  private <T> T durable(T reply) {
+    if (reply == null || wal == null) {
+      return reply;
+    }
+    long startedAt = System.nanoTime();
+    boolean synced = wal.sync();
+    walSyncLatency.record(System.nanoTime() - startedAt);
+    if (synced) {
+      return reply;
+    }
+    LOG.error("Server {}: write-ahead log failure", serverId);
+    return null;
+  }
+
+  @Override
+  public String learn(Proposal proposal) {
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received a Learn message", serverId);
+    }
+    AcceptorLog.Entry learned = applyChosen(Collections.singletonList(proposal)).get(0);
+    if (learned.getResult() == null) {
+      // Either out of order or behind a slot this replica missed
+      catchUp.request();
+    }
+    // Null while an earlier slot has not been learned by this replica yet
+    return learned.getResult();
+  }
+
+  /**
+   * Records chosen proposals and applies every slot that is now ready, in slot order
+   * @param proposals chosen proposals
+   * @return the log entry of each proposal
+   */
+  List<AcceptorLog.Entry> applyChosen(List<Proposal> proposals) {
+    List<AcceptorLog.Entry> learned = new ArrayList<>(proposals.size());
+    StorageEngine snapshot = null;
+    int applied;
+    synchronized (applyLock) {
+      for (Proposal proposal : proposals) {
+        learned.add(acceptorLog.choose(proposal));
+      }
+      for (AcceptorLog.Entry entry : acceptorLog.takeReady()) {
+        long startedAt = System.nanoTime();
+        entry.setResult(apply(entry.getChosen().getOperation()));
+        applyLatency.record(System.nanoTime() - startedAt);
+      }
+      applied = acceptorLog.getLastApplied();
+      if (wal != null && applied - snapshotSlot >= SNAPSHOT_EVERY_SLOTS) {
+        // Copied under the lock so that the snapshot matches the slot exactly
+        snapshot = keyValueStore.copy();
+        snapshotSlot = applied;
       }
-    });
+      applyLock.notifyAll();
+    }
+    if (snapshot != null) {
+      StorageEngine store = snapshot;
+      snapshotter.execute(() -> snapshot(applied, store));
+    }
+    return learned;
+  }
 
-    try {
-      executorService.submit(future);
-      return future.get(20, TimeUnit.SECONDS);
-    } catch (Exception e) {
-      System.out.println("Error");
+  /**
+   * Replaces the store with a snapshot received from a peer and moves the log past it
+   * @param slot last slot applied in the snapshot
+   * @param store contents of the snapshot
+   */
+  void installSnapshot(int slot, StorageEngine store) {
+    synchronized (applyLock) {
+      if (acceptorLog.getLastApplied() >= slot) {
+        return;
+      }
+      for (RangeSnapshot scan : openScans) {
+        scan.invalidate();
+      }
+      openScans.clear();
+      keyValueStore.clear();
+      store.forEach(keyValueStore::put);
+      acceptorLog.installSnapshot(slot);
+      for (AcceptorLog.Entry entry : acceptorLog.takeReady()) {
+        entry.setResult(apply(entry.getChosen().getOperation()));
+      }
+      if (wal != null) {
+        // The log before the snapshot was never written here, so persist the snapshot itself
+        snapshotSlot = slot;
+        snapshotter.execute(() -> snapshot(slot, store));
+      }
+      applyLock.notifyAll();
+    }
+  }
+
+  @Override
+  public SnapshotChunk getSnapshotChunk(int slot, int offset, int maxEntries) {
+    TransferSnapshot transfer = outgoing;
+    if (slot < 0) {
+      if (transfer == null || System.currentTimeMillis() - transfer.createdAt > TRANSFER_REUSE_MILLIS) {
+        synchronized (applyLock) {
+          transfer = new TransferSnapshot(acceptorLog.getLastApplied(), keyValueStore.copy());
+        }
+        outgoing = transfer;
+      }
+    } else if (transfer == null || transfer.slot != slot) {
       return null;
     }
+    int end = Math.min(transfer.keys.length, offset + maxEntries);
+    String[] values = new String[end - offset];
+    for (int i = offset; i < end; i++) {
+      values[i - offset] = transfer.store.get(transfer.keys[i]);
+    }
+    return new SnapshotChunk(transfer.slot, offset, Arrays.copyOfRange(transfer.keys, offset, end),
+            values, end == transfer.keys.length);
+  }
 
+  @Override
+  public Integer readIndex(long ballot) {
+    return acceptorExecutor.call(() -> acceptorLog.readIndex(ballot));
   }
 
   @Override
-  public String learn(Proposal proposal) {
-    System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-            + " Server " + serverId + ": Received a Learn message");
-    int key = proposal.getOperation().getKey();
-    RequestMethod method = proposal.getOperation().getMethod();
+  public List<Proposal> getChosen(int fromSlot, int toSlot) {
+    return acceptorLog.getChosen(fromSlot, toSlot);
+  }
+
+  @Override
+  public int getLastApplied() {
+    return acceptorLog.getLastApplied();
+  }
+
+  /**
+   * Writes a snapshot and truncates the write-ahead log up to its slot
+   * @param slot last slot applied to the copy of the store
+   * @param store copy of the store
+   */
+  private void snapshot(int slot, StorageEngine store) {
+    try {
+      int firstKept = acceptorLog.compact(slot);
+      snapshots.save(slot, store);
+      wal.deleteBefore(firstKept);
+      LOG.info("Server {}: snapshot of shard {} written at slot {}", serverId, shard, slot);
+    } catch (IOException e) {
+      LOG.error("Server " + serverId + ": snapshot failed", e);
+    }
+  }
+
+  /**
+   * Applies a chosen operation to the key-value store
+   * @param operation chosen operation
+   * @return result message for the client
+   */
+  private String apply(Operation operation) {
+    int key = operation.getKey();
+    RequestMethod method = operation.getMethod();
     switch (method) {
       case GET:
-        if (!keyValueStore.containsKey(key)) {
-          acceptedProposal = null;
-          return "Key " + key + " not found. GET request aborted.";
-        }
-        return executeGet(proposal.getOperation().getKey());
+        return lookup(key);
       case PUT:
-        executePut(key, proposal.getOperation().getValue());
-        acceptedProposal = null;
+        executePut(key, operation.getValue());
         return "Key " + key + " was successfully inserted";
       case DEL:
-        if (!keyValueStore.containsKey(key)) {
-          acceptedProposal = null;
+        if (!executeDelete(key)) {
           return "Key " + key + " not found. GET request aborted.";
         }
-        executeDelete(key);
-        acceptedProposal = null;
         return "Key " + key + " successfully deleted";
+      case BATCH:
+        List<String> results = new ArrayList<>();
+        for (Operation batched : operation.getOperations()) {
+          results.add(apply(batched));
+        }
+        return joinResults(results);
+      case MGET:
+        List<String> values = new ArrayList<>();
+        for (Operation read : operation.getOperations()) {
+          values.add(lookup(read.getKey()));
+        }
+        return joinResults(values);
+      case MPUT:
+        for (Operation write : operation.getOperations()) {
+          executePut(write.getKey(), write.getValue());
+        }
+        return operation.getOperations().size() + " keys were successfully inserted";
+      case CAS:
+        String current = executeGet(key);
+        if (!Objects.equals(current, operation.getExpected())) {
+          return current == null ? "Key " + key + " not found. CAS request aborted."
+                  : "Key " + key + " does not hold the expected value. CAS request aborted.";
+        }
+        executePut(key, operation.getValue());
+        return "Key " + key + " was successfully updated";
+      case NOOP:
+        return "No operation";
       default:
-        acceptedProposal = null;
         return "Invalid Input.";
     }
   }
@@ -169,8 +672,21 @@ public class KeyValueStoreServer implements PaxosServer, Serializable {
   @Override
   public String get(int key) throws RemoteException {
     // Logging
-    System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-            + " Server " + serverId + ": Received GET request from client");
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received GET request from client", serverId);
+    }
+
+    // Linearizable local read once this replica has applied everything committed so far
+    long requestedAt = System.currentTimeMillis();
+    try {
+      String value = readLocal(() -> lookup(key), cd.readIndex(), requestedAt);
+      if (value != null) {
+        return value;
+      }
+    } catch (RemoteException e) {
+      LOG.debug("Server {}: {}, reading through consensus", serverId, e.getMessage());
+    }
+    consensusReads.increment();
 
     Operation operation = new Operation(RequestMethod.GET, key);
     Proposal proposal = createProposal(operation);
@@ -178,28 +694,171 @@ public class KeyValueStoreServer implements PaxosServer, Serializable {
     return this.cd.executeOperation(proposal);
   }
 
+  @Override
+  public String get(int key, long maxStalenessMillis) throws RemoteException {
+    // Logging
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received bounded-staleness GET request from client", serverId);
+    }
+
+    if (System.currentTimeMillis() - freshAsOf <= maxStalenessMillis) {
+      synchronized (applyLock) {
+        return lookup(key);
+      }
+    }
+    // Too stale: a linearizable read also brings the freshness of this replica up to date
+    return get(key);
+  }
+
   @Override
   public String put(int key, String value) throws RemoteException {
     // Logging
-    System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-            + " Server " + serverId + ": Received PUT request from client");
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received PUT request from client", serverId);
+    }
 
     Operation operation = new Operation(RequestMethod.PUT, key, value);
-    Proposal proposal = createProposal(operation);
 
-    return this.cd.executeOperation(proposal);
+    return batcher.submit(operation);
   }
 
   @Override
   public String delete(int key) throws RemoteException {
     // Logging
-    System.out.println("[" + new Timestamp(new Date().getTime()).toString() + "]"
-            + " Server " + serverId + ": Received DELETE request from client");
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received DELETE request from client", serverId);
+    }
 
     Operation operation = new Operation(RequestMethod.DEL, key);
-    Proposal proposal = createProposal(operation);
 
-    return this.cd.executeOperation(proposal);
+    return batcher.submit(operation);
+  }
+
+  @Override
+  public List<String> multiGet(List<Integer> keys) throws RemoteException {
+    // Logging
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received MULTI-GET request from client", serverId);
+    }
+
+    long requestedAt = System.currentTimeMillis();
+    try {
+      List<String> values = readLocal(() -> {
+        List<String> found = new ArrayList<>(keys.size());
+        for (int key : keys) {
+          found.add(lookup(key));
+        }
+        return found;
+      }, cd.readIndex(), requestedAt);
+      if (values != null) {
+        return values;
+      }
+    } catch (RemoteException e) {
+      LOG.debug("Server {}: {}, reading through consensus", serverId, e.getMessage());
+    }
+    consensusReads.increment();
+
+    List<Operation> reads = new ArrayList<>(keys.size());
+    for (int key : keys) {
+      reads.add(new Operation(RequestMethod.GET, key));
+    }
+    String result = cd.executeOperation(createProposal(new Operation(RequestMethod.MGET, reads)));
+    List<String> values = splitResults(result);
+    // A read that was not chosen yields a single failure message
+    return values != null && values.size() == keys.size() ? values : Collections.nCopies(keys.size(), result);
+  }
+
+  @Override
+  public String multiPut(Map<Integer, String> entries) throws RemoteException {
+    // Logging
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received MULTI-PUT request from client", serverId);
+    }
+
+    List<Operation> writes = new ArrayList<>(entries.size());
+    for (Map.Entry<Integer, String> entry : entries.entrySet()) {
+      writes.add(new Operation(RequestMethod.PUT, entry.getKey(), entry.getValue()));
+    }
+    return batcher.submit(new Operation(RequestMethod.MPUT, writes));
+  }
+
+  @Override
+  public String compareAndSet(int key, String expected, String value) throws RemoteException {
+    // Logging
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received CAS request from client", serverId);
+    }
+
+    return batcher.submit(new Operation(key, expected, value));
+  }
+
+  @Override
+  public ScanResult scan(int from, int to, int limit) throws RemoteException {
+    // Logging
+    if (LOG.sampleTrace()) {
+      LOG.trace("Server {}: Received SCAN request from client", serverId);
+    }
+
+    long requestedAt = System.currentTimeMillis();
+    // Only the snapshot point is taken under the apply lock; its pages are read one at a time
+    RangeSnapshot snapshot = readLocal(() -> {
+      RangeSnapshot opened = new RangeSnapshot(from, to);
+      openScans.add(opened);
+      return opened;
+    }, cd.readIndex(), requestedAt);
+    if (snapshot == null) {
+      throw new RemoteException("Server " + serverId + " could not catch up with shard " + shard
+              + " to scan");
+    }
+    return scans.start(snapshot, limit);
+  }
+
+  @Override
+  public ScanResult scanNext(long cursor, int limit) throws RemoteException {
+    return scans.next(cursor, limit);
+  }
+
+  @Override
+  public void closeScan(long cursor) {
+    scans.close(cursor);
+  }
+
+  /**
+   * Reads from the local store after waiting for this replica to apply the read index.
+   * Holding the apply lock keeps the read from observing a half-applied batch.
+   * @param read reads the store
+   * @param readIndex slot that must have been applied before reading
+   * @param requestedAt time the read index was requested at
+   * @return the result of the read, or null if the replica did not catch up in time
+   */
+  private <T> T readLocal(Supplier<T> read, int readIndex, long requestedAt) {
+    long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+    synchronized (applyLock) {
+      while (acceptorLog.getLastApplied() < readIndex) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          catchUp.request();
+          return null;
+        }
+        try {
+          applyLock.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      // Everything committed before the read index was requested has now been applied
+      freshAsOf = Math.max(freshAsOf, requestedAt);
+      return read.get();
+    }
+  }
+
+  private String lookup(int key) {
+    String value = executeGet(key);
+    if (value == null) {
+      return "Key " + key + " not found. GET request aborted.";
+    }
+    return value;
   }
 
   public String executeGet(int key) {
@@ -207,42 +866,98 @@ public class KeyValueStoreServer implements PaxosServer, Serializable {
   }
 
   public void executePut(int key, String value) {
+    preserveForScans(key);
     keyValueStore.put(key, value);
   }
 
-  public void executeDelete(int key) {
-    keyValueStore.remove(key);
+  public boolean executeDelete(int key) {
+    preserveForScans(key);
+    return keyValueStore.remove(key);
   }
 
-  public static void main(String[] args) throws RemoteException {
+  private void preserveForScans(int key) {
+    for (RangeSnapshot scan : openScans) {
+      scan.preserve(key);
+    }
+  }
+
+  /**
+   * Starts servers of the cluster. Given the RMI ports of the servers, every server runs in
+   * this process and they share the registry on port 1099. Given a cluster file and a server
+   * id, only that server runs, with a registry of its own on its RMI port, so that the servers
+   * can run as separate processes on separate hosts.
+   */
+  public static void main(String[] args) throws IOException {
+    ShardMap shardMap = new ShardMap();
+    if (args.length == 2 && !args[0].chars().allMatch(Character::isDigit)) {
+      ClusterConfig cluster = ClusterConfig.load(Paths.get(args[0]));
+      ClusterConfig.Member member = cluster.getMember(Integer.parseInt(args[1]));
+      Registry registry = LocateRegistry.createRegistry(member.getRegistryPort());
+      Metrics.startHttpServer();
+      start(cluster, member, shardMap, registry);
+      return;
+    }
 
     List<Integer> listOfPorts = new ArrayList<>();
-    for (int i = 0; i < 5; i++) {
-      listOfPorts.add(Integer.parseInt(args[i]));
+    for (String arg : args) {
+      listOfPorts.add(Integer.parseInt(arg));
     }
+    ClusterConfig cluster = ClusterConfig.local(listOfPorts);
     // Create registry
-    Registry registry = LocateRegistry.createRegistry(1099);
-
-    //Create Coordinator
-    PaxosCoordinator cd = new Coordinator();
-
-    // Instantiate 5 servers on different ports
-    for (int i = 0; i < 5; i++) {
-      // Server instance
-      PaxosServer server = new KeyValueStoreServer(cd, i + 1, listOfPorts.get(i));
-
-      // Remote stub that is used for RPC communication. 0 port indicates any port is fine
-      PaxosServer stub = (PaxosServer) UnicastRemoteObject.exportObject(server, listOfPorts.get(i));
+    Registry registry = LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+    Metrics.startHttpServer();
+    for (ClusterConfig.Member member : cluster.getMembers()) {
+      start(cluster, member, shardMap, registry);
+    }
+  }
 
+  /**
+   * Starts one server: a replica of every shard, each proposing through a coordinator of its
+   * own, and the router clients talk to
+   * @param cluster servers of the cluster
+   * @param member server to start
+   * @param shardMap partitioning of the keyspace
+   * @param registry registry to bind the server's remote objects in
+   */
+  private static void start(ClusterConfig cluster, ClusterConfig.Member member, ShardMap shardMap,
+                            Registry registry) throws RemoteException {
+    int id = member.getId();
+    int port = member.getPort();
+    // One replica of every shard, all exported on the server's port
+    List<KeyValueStoreServer> replicas = new ArrayList<>();
+    for (int shard = 0; shard < shardMap.getShards(); shard++) {
+      Coordinator coordinator = new Coordinator(id, shard);
+      for (ClusterConfig.Member acceptor : cluster.getMembers()) {
+        coordinator.addAcceptor(acceptor);
+      }
+      KeyValueStoreServer replica = new KeyValueStoreServer(coordinator, id, shard, port);
+      replicas.add(replica);
+      PaxosServer stub = (PaxosServer) UnicastRemoteObject.exportObject(replica, port);
       try {
-        // Bind the remote object to the registry for RPC communication
-        registry.bind("KeyValueStore" + (i + 1), stub);
-        System.out.println("Server " + (i + 1) + " ready...");
+        registry.bind(ShardMap.acceptorName(id, shard), stub);
       } catch (AlreadyBoundException e) {
-        System.err.println("Remote object could not be bound");
+        LOG.error("Remote object could not be bound");
       }
+    }
 
+    try {
+      // Binary transport for asynchronous clients, and for Paxos messages in nio mode
+      new NioTransportServer(replicas, Transports.binaryPort(port));
+    } catch (IOException e) {
+      LOG.error("Binary transport could not be started, using RMI", e);
     }
 
+    // Remote stub that is used for RPC communication, routing each key to its shard
+    ShardRouter router = new ShardRouter(shardMap, replicas);
+    ROUTERS.add(router);
+    RpcService stub = (RpcService) UnicastRemoteObject.exportObject(router, port);
+
+    try {
+      // Bind the remote object to the registry for RPC communication
+      registry.bind("KeyValueStore" + id, stub);
+      LOG.info("Server {} ready...", id);
+    } catch (AlreadyBoundException e) {
+      LOG.error("Remote object could not be bound");
+    }
   }
 }
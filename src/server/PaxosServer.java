@@ -3,14 +3,21 @@ package server;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
+import java.util.List;
+
+import paxos.Operation;
 import paxos.Promise;
 import paxos.Proposal;
 import service.RpcService;
+import storage.SnapshotChunk;
 
 /**
  * An interface for the methods to implement a server that uses Paxos protocol
  */
 public interface PaxosServer extends RpcService, Remote {
+  // Read index reply of an acceptor that has promised a higher ballot than the leader's
+  int SUPERSEDED = Integer.MIN_VALUE;
+
   /**
    * Method for the Prepare phase of Paxos
    * @param proposal Proposal from a proposer
@@ -19,6 +26,16 @@ public interface PaxosServer extends RpcService, Remote {
    */
   Promise prepare(Proposal proposal) throws RemoteException;
 
+  /**
+   * Method for the Prepare phase of Multi-Paxos, promising the ballot for every slot from the
+   * proposal's slot onwards
+   * @param proposal Proposal from a leader
+   * @return a Promise including the status; an ACCEPTED promise carries the highest slot
+   *         accepted and a REJECTED one the ballot promised instead
+   * @throws RemoteException if procedure can't be called
+   */
+  Promise prepareFrom(Proposal proposal) throws RemoteException;
+
   /**
    * Method for the Accept phase of Paxos
    * @param proposal Proposal from a proposer
@@ -35,10 +52,68 @@ public interface PaxosServer extends RpcService, Remote {
    */
   String learn(Proposal proposal) throws RemoteException;
 
+  /**
+   * Method for confirming a read index with a single heartbeat round
+   * @param ballot ballot of the Multi-Paxos leader asking, or -1 if there is no leader
+   * @return the highest slot accepted by this acceptor, SUPERSEDED if a higher ballot was
+   *         promised, or null if the acceptor could not handle the message
+   * @throws RemoteException if procedure can't be called
+   */
+  Integer readIndex(long ballot) throws RemoteException;
+
+  /**
+   * Method for reading chosen log entries, used by replicas catching up on missed slots
+   * @param fromSlot first slot, inclusive
+   * @param toSlot last slot, inclusive
+   * @return chosen proposals in slot order, up to the first slot not chosen yet
+   * @throws RemoteException if procedure can't be called
+   */
+  List<Proposal> getChosen(int fromSlot, int toSlot) throws RemoteException;
+
+  /**
+   * Method for getting the last log slot applied to the key-value store
+   * @return slot index, or -1 if nothing was applied yet
+   * @throws RemoteException if procedure can't be called
+   */
+  int getLastApplied() throws RemoteException;
+
+  /**
+   * Method for streaming a point-in-time copy of the key-value store to a replica that is too
+   * far behind to catch up from the log
+   * @param slot slot of the transfer in progress, or -1 to start a new transfer
+   * @param offset index of the first entry to return
+   * @param maxEntries maximum number of entries to return
+   * @return the chunk, or null if the copy of the transfer in progress is no longer available
+   * @throws RemoteException if procedure can't be called
+   */
+  SnapshotChunk getSnapshotChunk(int slot, int offset, int maxEntries) throws RemoteException;
+
+  /**
+   * Method for proposing writes forwarded by a replica that is not the Multi-Paxos leader, batched
+   * @param operation write or batch of writes
+   * @return result of the operation
+   * @throws RemoteException if procedure can't be called
+   */
+  String propose(Operation operation) throws RemoteException;
+
   /**
    * Method for getting the port of the acceptor
    * @return integer port number
    * @throws RemoteException if procedure can't be called
    */
   int getPort() throws RemoteException;
+
+  /**
+   * Method for getting the server number of the acceptor, as in the cluster configuration
+   * @return server id
+   * @throws RemoteException if procedure can't be called
+   */
+  int getServerId() throws RemoteException;
+
+  /**
+   * Method for finding the replica of this shard that clients should send writes to
+   * @return server id of the replica, or -1 if every replica is down
+   * @throws RemoteException if procedure can't be called
+   */
+  int getLeaderId() throws RemoteException;
 }
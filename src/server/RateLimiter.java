@@ -0,0 +1,42 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the bytes per second a background transfer may use, so that it does
+ * not starve foreground traffic. Holds at most one second worth of tokens.
+ */
+public class RateLimiter {
+
+  private final long bytesPerSecond;
+  private double available;
+  private long refilledAt;
+
+  public RateLimiter(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.available = bytesPerSecond;
+    this.refilledAt = System.nanoTime();
+  }
+
+  /**
+   * Waits until the given number of bytes may be transferred
+   * @param bytes size of the next transfer
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized void acquire(long bytes) throws InterruptedException {
+    refill();
+    available -= bytes;
+    if (available < 0) {
+      // Pay back the debt before the next transfer
+      TimeUnit.NANOSECONDS.sleep((long) (-available * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond));
+      refill();
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    available = Math.min(bytesPerSecond,
+            available + (now - refilledAt) * bytesPerSecond / (double) TimeUnit.SECONDS.toNanos(1));
+    refilledAt = now;
+  }
+}
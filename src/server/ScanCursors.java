@@ -0,0 +1,157 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import service.ScanResult;
+
+/**
+ * Open range scans, keyed by the cursor handed to the client. A scan whose first page holds
+ * every entry never gets a cursor; the others are dropped once read to the end, when the client
+ * closes them, or after being left idle for CURSOR_MILLIS.
+ */
+class ScanCursors {
+
+  private static final long CURSOR_MILLIS = Long.getLong("paxos.scan.cursorMillis", 30000);
+  // Drops idle cursors of every server, whether or not scans keep coming
+  private static final ScheduledExecutorService EXPIRY = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "scan-cursor-expiry");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Source of the pages of one scan
+   */
+  interface Cursor {
+    /**
+     * Reads the next page
+     * @param limit maximum number of entries
+     * @return the page, without a cursor
+     * @throws RemoteException if the entries cannot be read
+     */
+    ScanResult next(int limit) throws RemoteException;
+
+    boolean exhausted();
+
+    /**
+     * Releases what the cursor holds once it is dropped before being read to the end
+     */
+    void close();
+  }
+
+  private static class OpenCursor {
+    private final Cursor cursor;
+    private volatile long lastUsed;
+
+    OpenCursor(Cursor cursor) {
+      this.cursor = cursor;
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  private final Map<Long, OpenCursor> open;
+  private final AtomicLong ids;
+  private final ScheduledFuture<?> expiry;
+
+  ScanCursors() {
+    this.open = new ConcurrentHashMap<>();
+    this.ids = new AtomicLong(ScanResult.NO_CURSOR);
+    long period = Math.max(1, CURSOR_MILLIS / 2);
+    this.expiry = EXPIRY.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts a scan
+   * @param cursor source of the pages
+   * @param limit maximum number of entries in the first page
+   * @return first page, with a cursor if more pages follow
+   * @throws RemoteException if the entries cannot be read
+   */
+  ScanResult start(Cursor cursor, int limit) throws RemoteException {
+    checkLimit(limit);
+    ScanResult page;
+    try {
+      page = cursor.next(limit);
+    } catch (RemoteException | RuntimeException e) {
+      cursor.close();
+      throw e;
+    }
+    if (cursor.exhausted()) {
+      return page;
+    }
+    long id = ids.incrementAndGet();
+    open.put(id, new OpenCursor(cursor));
+    return new ScanResult(id, page.getKeys(), page.getValues());
+  }
+
+  /**
+   * Continues a scan
+   * @param id cursor of the previous page
+   * @param limit maximum number of entries in the page
+   * @return next page, or null if the cursor is unknown or expired
+   * @throws RemoteException if the entries cannot be read
+   */
+  ScanResult next(long id, int limit) throws RemoteException {
+    checkLimit(limit);
+    OpenCursor entry = open.get(id);
+    if (entry == null) {
+      return null;
+    }
+    ScanResult page;
+    // A client retrying a page must not read the cursor concurrently with itself
+    synchronized (entry) {
+      entry.lastUsed = System.currentTimeMillis();
+      page = entry.cursor.next(limit);
+      if (entry.cursor.exhausted()) {
+        open.remove(id);
+        return page;
+      }
+    }
+    return new ScanResult(id, page.getKeys(), page.getValues());
+  }
+
+  /**
+   * Ends a scan before it is read to the end
+   * @param id cursor of the last page read; unknown or expired cursors are ignored
+   */
+  void close(long id) {
+    OpenCursor entry = open.remove(id);
+    if (entry != null) {
+      synchronized (entry) {
+        entry.cursor.close();
+      }
+    }
+  }
+
+  /**
+   * Stops expiring cursors and closes every open one
+   */
+  void shutdown() {
+    expiry.cancel(false);
+    for (long id : open.keySet()) {
+      close(id);
+    }
+  }
+
+  private static void checkLimit(int limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("Scan limit must be positive: " + limit);
+    }
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<Long, OpenCursor> entry : open.entrySet()) {
+      if (now - entry.getValue().lastUsed > CURSOR_MILLIS && open.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().cursor.close();
+      }
+    }
+  }
+}
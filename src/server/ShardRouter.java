@@ -0,0 +1,232 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import coordinator.ShardMap;
+import logging.Logger;
+import service.RpcService;
+import service.ScanResult;
+
+/**
+ * Client-facing entry point of a server hosting one replica of every shard. Each request is
+ * sent to the replica of the shard owning its key, so the shards commit independently.
+ * Multi-key reads are split into one request per shard, multi-key writes must stay within one
+ * shard, and range scans are merged in key order from the scans of every shard owning part of
+ * the range.
+ */
+public class ShardRouter implements RpcService {
+
+  private static final Logger LOG = Logger.get(ShardRouter.class);
+
+  /**
+   * Scan of one shard, read page by page as the merge consumes it
+   */
+  private static class ShardScan {
+    private final RpcService replica;
+    private ScanResult page;
+    private int position;
+
+    ShardScan(RpcService replica, ScanResult page) {
+      this.replica = replica;
+      this.page = page;
+      this.position = 0;
+    }
+
+    /**
+     * Makes sure the next entry of the shard is buffered, fetching its next page if needed
+     * @return false once the shard has no entries left
+     */
+    boolean fill(int limit) throws RemoteException {
+      while (position == page.getKeys().length && !page.isLast()) {
+        ScanResult next = replica.scanNext(page.getCursor(), limit);
+        if (next == null) {
+          throw new RemoteException("Scan cursor of a shard expired");
+        }
+        page = next;
+        position = 0;
+      }
+      return position < page.getKeys().length;
+    }
+
+    int key() {
+      return page.getKeys()[position];
+    }
+  }
+
+  /**
+   * Merges the scans of several shards into one scan in key order
+   */
+  private static class MergedScan implements ScanCursors.Cursor {
+    private final List<ShardScan> shards;
+
+    MergedScan(List<ShardScan> shards) {
+      this.shards = shards;
+    }
+
+    @Override
+    public ScanResult next(int limit) throws RemoteException {
+      int[] keys = new int[Math.min(limit, 256)];
+      String[] values = new String[keys.length];
+      int count = 0;
+      while (count < limit) {
+        ShardScan lowest = null;
+        for (ShardScan shard : shards) {
+          if (shard.fill(limit) && (lowest == null || shard.key() < lowest.key())) {
+            lowest = shard;
+          }
+        }
+        if (lowest == null) {
+          break;
+        }
+        if (count == keys.length) {
+          keys = Arrays.copyOf(keys, (int) Math.min(limit, 2L * count));
+          values = Arrays.copyOf(values, keys.length);
+        }
+        keys[count] = lowest.key();
+        values[count] = lowest.page.getValues()[lowest.position];
+        lowest.position += 1;
+        count += 1;
+      }
+      return new ScanResult(ScanResult.NO_CURSOR, Arrays.copyOf(keys, count), Arrays.copyOf(values, count));
+    }
+
+    @Override
+    public boolean exhausted() {
+      for (ShardScan shard : shards) {
+        if (shard.position < shard.page.getKeys().length || !shard.page.isLast()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void close() {
+      for (ShardScan shard : shards) {
+        if (!shard.page.isLast()) {
+          try {
+            shard.replica.closeScan(shard.page.getCursor());
+          } catch (RemoteException e) {
+            // The cursor of the shard expires on its own
+            LOG.debug("Could not close the scan of a shard: {}", e.getMessage());
+          }
+        }
+      }
+    }
+  }
+
+  private final ShardMap shardMap;
+  private final List<? extends RpcService> replicas;
+  private final ScanCursors scans;
+
+  /**
+   * @param shardMap partitioning of the keyspace
+   * @param replicas local replica of each shard, indexed by shard
+   */
+  public ShardRouter(ShardMap shardMap, List<? extends RpcService> replicas) {
+    this.shardMap = shardMap;
+    this.replicas = replicas;
+    this.scans = new ScanCursors();
+  }
+
+  @Override
+  public String get(int key) throws RemoteException {
+    return replicaOf(key).get(key);
+  }
+
+  @Override
+  public String get(int key, long maxStalenessMillis) throws RemoteException {
+    return replicaOf(key).get(key, maxStalenessMillis);
+  }
+
+  @Override
+  public String put(int key, String value) throws RemoteException {
+    return replicaOf(key).put(key, value);
+  }
+
+  @Override
+  public String delete(int key) throws RemoteException {
+    return replicaOf(key).delete(key);
+  }
+
+  @Override
+  public List<String> multiGet(List<Integer> keys) throws RemoteException {
+    // Positions of the keys of each shard in the request
+    Map<Integer, List<Integer>> positions = new LinkedHashMap<>();
+    for (int i = 0; i < keys.size(); i++) {
+      positions.computeIfAbsent(shardMap.shardOf(keys.get(i)), shard -> new ArrayList<>()).add(i);
+    }
+    String[] values = new String[keys.size()];
+    for (Map.Entry<Integer, List<Integer>> shard : positions.entrySet()) {
+      List<Integer> shardKeys = new ArrayList<>(shard.getValue().size());
+      for (int position : shard.getValue()) {
+        shardKeys.add(keys.get(position));
+      }
+      List<String> shardValues = replicas.get(shard.getKey()).multiGet(shardKeys);
+      for (int i = 0; i < shardKeys.size(); i++) {
+        values[shard.getValue().get(i)] = shardValues.get(i);
+      }
+    }
+    return Arrays.asList(values);
+  }
+
+  @Override
+  public String multiPut(Map<Integer, String> entries) throws RemoteException {
+    // Shards commit independently, so only the pairs of a single shard can be applied atomically
+    int shard = -1;
+    for (int key : entries.keySet()) {
+      int owner = shardMap.shardOf(key);
+      if (shard >= 0 && owner != shard) {
+        throw new RemoteException("MULTI-PUT keys span shards " + shard + " and " + owner
+                + "; a MULTI-PUT must stay within one shard to be applied atomically");
+      }
+      shard = owner;
+    }
+    return replicas.get(Math.max(shard, 0)).multiPut(entries);
+  }
+
+  @Override
+  public String compareAndSet(int key, String expected, String value) throws RemoteException {
+    return replicaOf(key).compareAndSet(key, expected, value);
+  }
+
+  @Override
+  public ScanResult scan(int from, int to, int limit) throws RemoteException {
+    List<ShardScan> shards = new ArrayList<>();
+    try {
+      for (int shard : shardMap.shardsOf(from, to)) {
+        RpcService replica = replicas.get(shard);
+        shards.add(new ShardScan(replica, replica.scan(from, to, limit)));
+      }
+    } catch (RemoteException | RuntimeException e) {
+      // Release the scans of the shards that did start
+      new MergedScan(shards).close();
+      throw e;
+    }
+    return scans.start(new MergedScan(shards), limit);
+  }
+
+  @Override
+  public ScanResult scanNext(long cursor, int limit) throws RemoteException {
+    return scans.next(cursor, limit);
+  }
+
+  @Override
+  public void closeScan(long cursor) {
+    scans.close(cursor);
+  }
+
+  @Override
+  public int getLeader(int key) throws RemoteException {
+    return replicaOf(key).getLeader(key);
+  }
+
+  private RpcService replicaOf(int key) {
+    return replicas.get(shardMap.shardOf(key));
+  }
+}
@@ -2,6 +2,8 @@ package service;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Remote interface for RMI. Extends Remote from Java rmi.
@@ -16,6 +18,17 @@ public interface RpcService extends Remote {
      */
     String get(int key) throws RemoteException;
 
+    /**
+     * Method to get a value that may be stale by a bounded amount of time. The replica answers
+     * from its local store if it has applied every write committed up to maxStalenessMillis
+     * ago, and otherwise falls back to a linearizable read.
+     * @param key integer key
+     * @param maxStalenessMillis how old the returned value may be, in milliseconds
+     * @return associated string value of key
+     * @throws RemoteException if procedure can't be called
+     */
+    String get(int key, long maxStalenessMillis) throws RemoteException;
+
     /**
      * Method to put key-value pair in the key-value store
      * @param key integer key
@@ -32,4 +45,71 @@ public interface RpcService extends Remote {
      * @throws RemoteException if procedure can't be called
      */
     String delete(int key) throws RemoteException;
+
+    /**
+     * Method to get the values of several keys, read at the same point of the log. With
+     * several shards each shard is read separately.
+     * @param keys integer keys
+     * @return result of a GET of each key, in the order of the keys
+     * @throws RemoteException if procedure can't be called
+     */
+    List<String> multiGet(List<Integer> keys) throws RemoteException;
+
+    /**
+     * Method to put several key-value pairs as one operation, applied atomically. With several
+     * shards every key must belong to the same shard; pairs spanning shards are rejected.
+     * @param entries key-value pairs
+     * @return string success/failure message
+     * @throws RemoteException if procedure can't be called or the keys span several shards
+     */
+    String multiPut(Map<Integer, String> entries) throws RemoteException;
+
+    /**
+     * Method to put a key-value pair only if the key holds an expected value
+     * @param key integer key
+     * @param expected value the key must hold, or null if the key must be absent
+     * @param value new string value
+     * @return string success/failure message
+     * @throws RemoteException if procedure can't be called
+     */
+    String compareAndSet(int key, String expected, String value) throws RemoteException;
+
+    /**
+     * Method to read the keys in a range, in ascending order, from a linearizable snapshot.
+     * Pages after the first are read from the same snapshot with scanNext. With several
+     * shards the snapshot is taken separately in each shard.
+     * @param from first key, inclusive
+     * @param to last key, exclusive
+     * @param limit maximum number of entries in the first page
+     * @return first page of the scan
+     * @throws RemoteException if procedure can't be called
+     */
+    ScanResult scan(int from, int to, int limit) throws RemoteException;
+
+    /**
+     * Method to read the next page of a scan
+     * @param cursor cursor of the previous page
+     * @param limit maximum number of entries in the page
+     * @return next page, or null if the cursor has expired and the scan must be started again
+     *     after the last key received
+     * @throws RemoteException if procedure can't be called
+     */
+    ScanResult scanNext(long cursor, int limit) throws RemoteException;
+
+    /**
+     * Method to end a scan before reading it to the end, releasing its snapshot. Cursors that
+     * are unknown or expired already are ignored.
+     * @param cursor cursor of the last page read
+     * @throws RemoteException if procedure can't be called
+     */
+    void closeScan(long cursor) throws RemoteException;
+
+    /**
+     * Method for finding the elected leader of the shard owning a key, so that clients can send
+     * writes straight to it instead of having them forwarded
+     * @param key key of the request
+     * @return number of the leading server, as in KeyValueStore1, or -1 if no leader is known
+     * @throws RemoteException if procedure can't be called
+     */
+    int getLeader(int key) throws RemoteException;
 }
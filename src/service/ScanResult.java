@@ -0,0 +1,38 @@
+package service;
+
+import java.io.Serializable;
+
+/**
+ * Page of a range scan: entries in ascending key order, and the cursor to fetch the next page
+ * from the same snapshot with scanNext
+ */
+public class ScanResult implements Serializable {
+  // Cursor of the last page of a scan
+  public static final long NO_CURSOR = 0;
+
+  private final long cursor;
+  private final int[] keys;
+  private final String[] values;
+
+  public ScanResult(long cursor, int[] keys, String[] values) {
+    this.cursor = cursor;
+    this.keys = keys;
+    this.values = values;
+  }
+
+  public long getCursor() {
+    return cursor;
+  }
+
+  public int[] getKeys() {
+    return keys;
+  }
+
+  public String[] getValues() {
+    return values;
+  }
+
+  public boolean isLast() {
+    return cursor == NO_CURSOR;
+  }
+}
@@ -0,0 +1,89 @@
+package storage;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Storage engine backed by a concurrent hash map on the heap, with a concurrent skip list of
+ * the keys next to it for range scans
+ */
+public class HeapStorageEngine implements StorageEngine {
+
+  private final Map<Integer, String> map;
+  private final NavigableSet<Integer> index;
+
+  public HeapStorageEngine() {
+    this.map = new ConcurrentHashMap<>();
+    this.index = new ConcurrentSkipListSet<>();
+  }
+
+  private HeapStorageEngine(Map<Integer, String> map) {
+    this.map = new ConcurrentHashMap<>(map);
+    this.index = new ConcurrentSkipListSet<>(this.map.keySet());
+  }
+
+  @Override
+  public String get(int key) {
+    return map.get(key);
+  }
+
+  @Override
+  public boolean containsKey(int key) {
+    return map.containsKey(key);
+  }
+
+  @Override
+  public void put(int key, String value) {
+    if (map.put(key, value) == null) {
+      index.add(key);
+    }
+  }
+
+  @Override
+  public boolean remove(int key) {
+    if (map.remove(key) == null) {
+      return false;
+    }
+    index.remove(key);
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public void clear() {
+    map.clear();
+    index.clear();
+  }
+
+  @Override
+  public void forEach(EntryVisitor visitor) {
+    for (Map.Entry<Integer, String> entry : map.entrySet()) {
+      visitor.visit(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public void scan(int from, int to, RangeVisitor visitor) {
+    if (from >= to) {
+      return;
+    }
+    for (Integer key : index.subSet(from, true, to, false)) {
+      // The index may briefly list a key that a concurrent remove has taken out of the map
+      String value = map.get(key);
+      if (value != null && !visitor.visit(key, value)) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public StorageEngine copy() {
+    return new HeapStorageEngine(map);
+  }
+}
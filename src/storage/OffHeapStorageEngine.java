@@ -0,0 +1,373 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Storage engine that keeps no object per entry. Keys live in an open-addressing table of
+ * primitive arrays with linear probing, and values are stored as UTF-8 bytes in arenas of
+ * direct memory, so the heap only holds a few arrays however many keys there are. A sorted
+ * index of the keys, also made of primitive arrays, serves range scans. Space left
+ * behind by overwritten and removed values is reclaimed by compacting the arenas once it
+ * outweighs the live values. Reads share a lock and writes take it exclusively; neither
+ * allocates apart from the String returned by get.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+
+  private static final int ARENA_BYTES = Integer.getInteger("paxos.storage.arenaBytes", 64 * 1024 * 1024);
+  private static final int INITIAL_CAPACITY = 1024;
+  // Address values of a table slot that holds no key
+  private static final long EMPTY = -1;
+  private static final long REMOVED = -2;
+  // Values are decoded through a per-thread buffer instead of a new array per read
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+  private final StampedLock lock;
+  private int[] keys;
+  // Arena address of the value of each slot: arena index in the high half, offset in the low
+  private long[] addresses;
+  private SortedIntIndex index;
+  private int size;
+  // Slots holding a key or a removal marker
+  private int used;
+  private List<ByteBuffer> arenas;
+  private long liveBytes;
+  private long garbageBytes;
+
+  public OffHeapStorageEngine() {
+    this.lock = new StampedLock();
+    reset(INITIAL_CAPACITY);
+  }
+
+  @Override
+  public String get(int key) {
+    long stamp = lock.readLock();
+    try {
+      int slot = find(key);
+      return slot < 0 ? null : decode(addresses[slot]);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public boolean containsKey(int key) {
+    long stamp = lock.readLock();
+    try {
+      return find(key) >= 0;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public void put(int key, String value) {
+    int length = utf8Length(value);
+    long stamp = lock.writeLock();
+    try {
+      long address = allocate(Integer.BYTES + length);
+      encode(value, length, address);
+      liveBytes += Integer.BYTES + length;
+      int slot = find(key);
+      if (slot >= 0) {
+        release(addresses[slot]);
+        addresses[slot] = address;
+      } else {
+        insert(key, address);
+        index.add(key);
+      }
+      compactIfWasteful();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public boolean remove(int key) {
+    long stamp = lock.writeLock();
+    try {
+      int slot = find(key);
+      if (slot < 0) {
+        return false;
+      }
+      release(addresses[slot]);
+      addresses[slot] = REMOVED;
+      index.remove(key);
+      size -= 1;
+      compactIfWasteful();
+      return true;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public int size() {
+    long stamp = lock.readLock();
+    try {
+      return size;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public void clear() {
+    long stamp = lock.writeLock();
+    try {
+      reset(INITIAL_CAPACITY);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public void forEach(EntryVisitor visitor) {
+    long stamp = lock.readLock();
+    try {
+      for (int slot = 0; slot < keys.length; slot++) {
+        if (addresses[slot] >= 0) {
+          visitor.visit(keys[slot], decode(addresses[slot]));
+        }
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public void scan(int from, int to, RangeVisitor visitor) {
+    long stamp = lock.readLock();
+    try {
+      index.scan(from, to, key -> visitor.visit(key, decode(addresses[find(key)])));
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public StorageEngine copy() {
+    OffHeapStorageEngine copy = new OffHeapStorageEngine();
+    long stamp = lock.readLock();
+    try {
+      copy.keys = keys.clone();
+      copy.addresses = new long[addresses.length];
+      copy.index = index.copy();
+      copy.size = size;
+      copy.used = used;
+      for (int slot = 0; slot < keys.length; slot++) {
+        copy.addresses[slot] = addresses[slot] < 0 ? addresses[slot] : copy.copyRecord(arenas, addresses[slot]);
+      }
+      copy.liveBytes = liveBytes;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    return copy;
+  }
+
+  private void reset(int capacity) {
+    keys = new int[capacity];
+    addresses = new long[capacity];
+    Arrays.fill(addresses, EMPTY);
+    index = new SortedIntIndex();
+    size = 0;
+    used = 0;
+    arenas = new ArrayList<>();
+    liveBytes = 0;
+    garbageBytes = 0;
+  }
+
+  private int find(int key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (true) {
+      long address = addresses[slot];
+      if (address == EMPTY) {
+        return -1;
+      }
+      if (address != REMOVED && keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void insert(int key, long address) {
+    if (used + 1 > keys.length / 4 * 3) {
+      // Grow when mostly full of keys, otherwise only clear out the removal markers
+      rehash(size + 1 > keys.length / 2 ? keys.length * 2 : keys.length);
+    }
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (addresses[slot] >= 0) {
+      slot = (slot + 1) & mask;
+    }
+    if (addresses[slot] == EMPTY) {
+      used += 1;
+    }
+    keys[slot] = key;
+    addresses[slot] = address;
+    size += 1;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldKeys = keys;
+    long[] oldAddresses = addresses;
+    keys = new int[capacity];
+    addresses = new long[capacity];
+    Arrays.fill(addresses, EMPTY);
+    int mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldAddresses[i] >= 0) {
+        int slot = hash(oldKeys[i]) & mask;
+        while (addresses[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        addresses[slot] = oldAddresses[i];
+      }
+    }
+    used = size;
+  }
+
+  private static int hash(int key) {
+    int hash = key * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Reserves room for a record at the end of the last arena, starting a new arena when full
+   */
+  private long allocate(int bytes) {
+    ByteBuffer arena = arenas.isEmpty() ? null : arenas.get(arenas.size() - 1);
+    if (arena == null || arena.remaining() < bytes) {
+      arena = ByteBuffer.allocateDirect(Math.max(ARENA_BYTES, bytes));
+      arenas.add(arena);
+    }
+    int offset = arena.position();
+    arena.position(offset + bytes);
+    return ((long) (arenas.size() - 1) << 32) | offset;
+  }
+
+  private void release(long address) {
+    int bytes = Integer.BYTES + arena(address).getInt(offset(address));
+    liveBytes -= bytes;
+    garbageBytes += bytes;
+  }
+
+  private void compactIfWasteful() {
+    if (garbageBytes < ARENA_BYTES || garbageBytes < liveBytes) {
+      return;
+    }
+    List<ByteBuffer> oldArenas = arenas;
+    arenas = new ArrayList<>();
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (addresses[slot] >= 0) {
+        addresses[slot] = copyRecord(oldArenas, addresses[slot]);
+      }
+    }
+    garbageBytes = 0;
+  }
+
+  /**
+   * Copies a record from the given arenas to the end of this engine's arenas
+   */
+  private long copyRecord(List<ByteBuffer> sourceArenas, long address) {
+    ByteBuffer source = sourceArenas.get((int) (address >>> 32));
+    int from = offset(address);
+    int bytes = Integer.BYTES + source.getInt(from);
+    long copied = allocate(bytes);
+    ByteBuffer target = arena(copied);
+    int to = offset(copied);
+    for (int i = 0; i < bytes; i++) {
+      target.put(to + i, source.get(from + i));
+    }
+    return copied;
+  }
+
+  private ByteBuffer arena(long address) {
+    return arenas.get((int) (address >>> 32));
+  }
+
+  private static int offset(long address) {
+    return (int) address;
+  }
+
+  private String decode(long address) {
+    ByteBuffer arena = arena(address);
+    int offset = offset(address);
+    int length = arena.getInt(offset);
+    byte[] bytes = SCRATCH.get();
+    if (bytes.length < length) {
+      bytes = new byte[Math.max(length, bytes.length * 2)];
+      SCRATCH.set(bytes);
+    }
+    offset += Integer.BYTES;
+    for (int i = 0; i < length; i++) {
+      bytes[i] = arena.get(offset + i);
+    }
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a value as UTF-8 straight into the arena, without an intermediate byte array
+   */
+  private void encode(String value, int length, long address) {
+    ByteBuffer arena = arena(address);
+    int position = offset(address);
+    arena.putInt(position, length);
+    position += Integer.BYTES;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        arena.put(position++, (byte) c);
+      } else if (c < 0x800) {
+        arena.put(position++, (byte) (0xC0 | (c >> 6)));
+        arena.put(position++, (byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          arena.put(position++, (byte) (0xF0 | (codePoint >> 18)));
+          arena.put(position++, (byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+          arena.put(position++, (byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+          arena.put(position++, (byte) (0x80 | (codePoint & 0x3F)));
+        } else {
+          // Unpaired surrogates are replaced, as String.getBytes does
+          arena.put(position++, (byte) '?');
+        }
+      } else {
+        arena.put(position++, (byte) (0xE0 | (c >> 12)));
+        arena.put(position++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+        arena.put(position++, (byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+  private static int utf8Length(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1))) {
+          length += 4;
+          i++;
+        } else {
+          length += 1;
+        }
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,44 @@
+package storage;
+
+import java.io.Serializable;
+
+/**
+ * Part of a snapshot of the key-value store streamed to a replica that is too far behind to
+ * catch up from the log. Every chunk of a transfer comes from the same point-in-time copy,
+ * identified by the slot it was taken at.
+ */
+public class SnapshotChunk implements Serializable {
+  private final int slot;
+  private final int offset;
+  private final int[] keys;
+  private final String[] values;
+  private final boolean last;
+
+  public SnapshotChunk(int slot, int offset, int[] keys, String[] values, boolean last) {
+    this.slot = slot;
+    this.offset = offset;
+    this.keys = keys;
+    this.values = values;
+    this.last = last;
+  }
+
+  public int getSlot() {
+    return slot;
+  }
+
+  public int getOffset() {
+    return offset;
+  }
+
+  public int[] getKeys() {
+    return keys;
+  }
+
+  public String[] getValues() {
+    return values;
+  }
+
+  public boolean isLast() {
+    return last;
+  }
+}
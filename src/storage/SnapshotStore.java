@@ -0,0 +1,86 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Snapshot of the key-value store as of a log slot. A new snapshot is written to a temporary
+ * file, synced and then renamed over the previous one, so a crash leaves either the old or the
+ * new snapshot in place.
+ */
+public class SnapshotStore {
+
+  private static final String FILE_NAME = "snapshot.bin";
+
+  private final Path file;
+  private final Path tempFile;
+
+  public SnapshotStore(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    this.file = dir.resolve(FILE_NAME);
+    this.tempFile = dir.resolve(FILE_NAME + ".tmp");
+  }
+
+  /**
+   * Replaces the snapshot on disk
+   * @param lastApplied last log slot applied to the store
+   * @param store copy of the key-value store
+   * @throws IOException if the snapshot cannot be written
+   */
+  public void save(int lastApplied, StorageEngine store) throws IOException {
+    try (FileOutputStream stream = new FileOutputStream(tempFile.toFile());
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+      out.writeInt(lastApplied);
+      out.writeInt(store.size());
+      try {
+        store.forEach((key, value) -> {
+          byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+          try {
+            out.writeInt(key);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      out.flush();
+      stream.getFD().sync();
+    }
+    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads the snapshot on disk into an empty store
+   * @param store store to fill
+   * @return last log slot applied in the snapshot, or -1 if none has been written yet
+   * @throws IOException if the snapshot cannot be read
+   */
+  public int load(StorageEngine store) throws IOException {
+    if (!Files.exists(file)) {
+      return -1;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      int lastApplied = in.readInt();
+      int size = in.readInt();
+      for (int i = 0; i < size; i++) {
+        int key = in.readInt();
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        store.put(key, new String(value, StandardCharsets.UTF_8));
+      }
+      return lastApplied;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package storage;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Sorted set of int keys held in primitive arrays, shaped as a two-level B+-tree: a directory
+ * of the first key of every block over blocks of up to BLOCK_KEYS sorted keys. Inserting or
+ * removing a key moves at most one block, and a range is read by walking the blocks in order.
+ * Not thread-safe; the owning storage engine guards it.
+ */
+class SortedIntIndex {
+
+  private static final int BLOCK_KEYS = 512;
+
+  // First key of each block, in ascending order
+  private int[] firstKeys;
+  private int[][] blocks;
+  private int[] counts;
+  private int blockCount;
+
+  SortedIntIndex() {
+    this.firstKeys = new int[16];
+    this.blocks = new int[16][];
+    this.counts = new int[16];
+    this.blockCount = 0;
+  }
+
+  void add(int key) {
+    if (blockCount == 0) {
+      insertBlock(0, new int[BLOCK_KEYS], 0);
+    }
+    int block = blockOf(key);
+    int position = Arrays.binarySearch(blocks[block], 0, counts[block], key);
+    if (position >= 0) {
+      return;
+    }
+    position = -position - 1;
+    if (counts[block] == BLOCK_KEYS) {
+      // Move the upper half into a new block on the right
+      int half = BLOCK_KEYS / 2;
+      int[] upper = new int[BLOCK_KEYS];
+      System.arraycopy(blocks[block], half, upper, 0, BLOCK_KEYS - half);
+      counts[block] = half;
+      insertBlock(block + 1, upper, BLOCK_KEYS - half);
+      if (position > half) {
+        block += 1;
+        position -= half;
+      }
+    }
+    int[] keys = blocks[block];
+    System.arraycopy(keys, position, keys, position + 1, counts[block] - position);
+    keys[position] = key;
+    counts[block] += 1;
+    firstKeys[block] = keys[0];
+  }
+
+  void remove(int key) {
+    if (blockCount == 0) {
+      return;
+    }
+    int block = blockOf(key);
+    int position = Arrays.binarySearch(blocks[block], 0, counts[block], key);
+    if (position < 0) {
+      return;
+    }
+    int[] keys = blocks[block];
+    System.arraycopy(keys, position + 1, keys, position, counts[block] - position - 1);
+    counts[block] -= 1;
+    if (counts[block] == 0) {
+      removeBlock(block);
+    } else {
+      firstKeys[block] = keys[0];
+    }
+  }
+
+  /**
+   * Visits the keys in [from, to) in ascending order until the visitor returns false
+   * @param from first key, inclusive
+   * @param to last key, exclusive
+   * @param visitor receives the keys
+   */
+  void scan(int from, int to, IntPredicate visitor) {
+    if (blockCount == 0 || from >= to) {
+      return;
+    }
+    int block = blockOf(from);
+    int position = Arrays.binarySearch(blocks[block], 0, counts[block], from);
+    if (position < 0) {
+      position = -position - 1;
+    }
+    for (; block < blockCount; block++, position = 0) {
+      int[] keys = blocks[block];
+      for (; position < counts[block]; position++) {
+        if (keys[position] >= to) {
+          return;
+        }
+        if (!visitor.test(keys[position])) {
+          return;
+        }
+      }
+    }
+  }
+
+  SortedIntIndex copy() {
+    SortedIntIndex copy = new SortedIntIndex();
+    copy.firstKeys = firstKeys.clone();
+    copy.counts = counts.clone();
+    copy.blocks = new int[blocks.length][];
+    for (int block = 0; block < blockCount; block++) {
+      copy.blocks[block] = blocks[block].clone();
+    }
+    copy.blockCount = blockCount;
+    return copy;
+  }
+
+  /**
+   * Block whose range covers a key: the last block starting at or below it, or the first one
+   */
+  private int blockOf(int key) {
+    int low = 0;
+    int high = blockCount - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (firstKeys[middle] <= key) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  private void insertBlock(int block, int[] keys, int count) {
+    if (blockCount == blocks.length) {
+      int capacity = blocks.length * 2;
+      firstKeys = Arrays.copyOf(firstKeys, capacity);
+      blocks = Arrays.copyOf(blocks, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+    }
+    System.arraycopy(firstKeys, block, firstKeys, block + 1, blockCount - block);
+    System.arraycopy(blocks, block, blocks, block + 1, blockCount - block);
+    System.arraycopy(counts, block, counts, block + 1, blockCount - block);
+    firstKeys[block] = keys[0];
+    blocks[block] = keys;
+    counts[block] = count;
+    blockCount += 1;
+  }
+
+  private void removeBlock(int block) {
+    System.arraycopy(firstKeys, block + 1, firstKeys, block, blockCount - block - 1);
+    System.arraycopy(blocks, block + 1, blocks, block, blockCount - block - 1);
+    System.arraycopy(counts, block + 1, counts, block, blockCount - block - 1);
+    blockCount -= 1;
+    blocks[blockCount] = null;
+  }
+}
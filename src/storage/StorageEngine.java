@@ -0,0 +1,85 @@
+package storage;
+
+/**
+ * Storage of the int-keyed string values of a replica, with an ordered index of the keys for
+ * range scans. Implementations must allow reads concurrently with a single writer.
+ */
+public interface StorageEngine {
+
+  /**
+   * Receives the entries of a store
+   */
+  interface EntryVisitor {
+    void visit(int key, String value);
+  }
+
+  /**
+   * Receives the entries of a range until it has seen enough
+   */
+  interface RangeVisitor {
+    /**
+     * @return false to stop the scan after this entry
+     */
+    boolean visit(int key, String value);
+  }
+
+  /**
+   * Value of a key
+   * @param key integer key
+   * @return the value, or null if the key is not present
+   */
+  String get(int key);
+
+  boolean containsKey(int key);
+
+  void put(int key, String value);
+
+  /**
+   * Removes a key
+   * @param key integer key
+   * @return true if the key was present
+   */
+  boolean remove(int key);
+
+  int size();
+
+  void clear();
+
+  /**
+   * Visits every entry in no particular order
+   * @param visitor receives the entries
+   */
+  void forEach(EntryVisitor visitor);
+
+  /**
+   * Visits the entries with keys in [from, to) in ascending key order, stopping early once the
+   * visitor returns false
+   * @param from first key, inclusive
+   * @param to last key, exclusive
+   * @param visitor receives the entries
+   */
+  void scan(int from, int to, RangeVisitor visitor);
+
+  /**
+   * Point-in-time copy that later writes to this store do not affect
+   * @return the copy, using the same kind of storage
+   */
+  StorageEngine copy();
+
+  /**
+   * Creates the storage engine selected by the paxos.storage property: "heap" for a hash map
+   * of boxed entries, or "offheap" for a primitive index with values kept outside the heap
+   * @return an empty store
+   */
+  static StorageEngine create() {
+    String engine = System.getProperty("paxos.storage", "heap");
+    switch (engine) {
+      case "heap":
+        return new HeapStorageEngine();
+      case "offheap":
+        return new OffHeapStorageEngine();
+      default:
+        throw new IllegalArgumentException("Unknown storage engine " + engine);
+    }
+  }
+}
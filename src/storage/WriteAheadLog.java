@@ -0,0 +1,267 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import logging.Logger;
+import transport.Frame;
+import transport.NioEventLoop;
+
+/**
+ * Append-only log of acceptor records, split into numbered segment files. Records are
+ * appended to an in-memory buffer and a single writer thread writes and fsyncs everything
+ * buffered at once, so concurrent callers waiting for durability share one fsync.
+ * Segments are either written through a file channel or, optionally, through memory-mapped
+ * files of a fixed size.
+ */
+public class WriteAheadLog {
+
+  private static final Logger LOG = Logger.get(WriteAheadLog.class);
+
+  /**
+   * Receives the records of the log during replay
+   */
+  public interface RecordHandler {
+    void onRecord(byte type, ByteBuffer payload) throws IOException;
+  }
+
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  // [int length][int crc][byte type] in front of every payload
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+
+  private final Path dir;
+  private final boolean mmap;
+  private final long segmentBytes;
+  // Guards the segment files against the writer and roll running at the same time
+  private final Object fileLock;
+  // Records appended but not written yet, swapped with the spare buffer by the writer
+  private Frame pending;
+  private Frame spare;
+  private long appended;
+  private long durable;
+  private boolean failed;
+  private volatile int segment;
+  private FileChannel channel;
+  private MappedByteBuffer mapped;
+
+  public WriteAheadLog(Path dir, boolean mmap, long segmentBytes) throws IOException {
+    this.dir = dir;
+    this.mmap = mmap;
+    this.segmentBytes = segmentBytes;
+    this.fileLock = new Object();
+    this.pending = new Frame(64 * 1024);
+    this.spare = new Frame(64 * 1024);
+    this.appended = 0;
+    this.durable = 0;
+    this.failed = false;
+    Files.createDirectories(dir);
+    List<Integer> existing = segments();
+    this.segment = existing.isEmpty() ? 0 : existing.get(existing.size() - 1);
+    openSegment(segment + 1, 0);
+    Thread writer = new Thread(this::write, "wal-writer-" + dir.getFileName());
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Replays every record of every segment in order. Replay of a segment stops at the first
+   * torn or empty record, which is where a crash interrupted the last write.
+   * @param handler receives the records
+   * @throws IOException if a segment cannot be read
+   */
+  public void replay(RecordHandler handler) throws IOException {
+    for (int number : segments()) {
+      if (number == segment) {
+        continue;
+      }
+      try (FileChannel file = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) file.size());
+        while (buffer.hasRemaining() && file.read(buffer) >= 0) {
+          // Keep reading until the whole segment is in memory
+        }
+        buffer.flip();
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_BYTES + 1) {
+          int length = buffer.getInt();
+          int checksum = buffer.getInt();
+          if (length <= 0 || length > buffer.remaining()) {
+            break;
+          }
+          ByteBuffer record = buffer.slice();
+          record.limit(length);
+          crc.reset();
+          crc.update(record.duplicate());
+          if ((int) crc.getValue() != checksum) {
+            break;
+          }
+          byte type = record.get();
+          handler.onRecord(type, record);
+          buffer.position(buffer.position() + length);
+        }
+      }
+    }
+  }
+
+  /**
+   * Buffers a record for the next group commit
+   * @param type record type
+   * @param encoder writes the payload
+   */
+  public synchronized void append(byte type, NioEventLoop.FrameEncoder encoder) {
+    ByteBuffer buffer = pending.buffer();
+    int start = buffer.position();
+    pending.putInt(0);
+    pending.putInt(0);
+    pending.put(type);
+    encoder.encode(pending);
+    buffer = pending.buffer();
+    int end = buffer.position();
+    int length = end - start - HEADER_BYTES;
+    CRC32 crc = new CRC32();
+    ByteBuffer record = buffer.duplicate();
+    record.position(start + HEADER_BYTES);
+    record.limit(end);
+    crc.update(record);
+    buffer.putInt(start, length);
+    buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+    appended += 1;
+    notifyAll();
+  }
+
+  /**
+   * Waits until every record appended before this call is on disk
+   * @return false if the log could not be written
+   */
+  public synchronized boolean sync() {
+    long target = appended;
+    while (durable < target && !failed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return !failed;
+  }
+
+  /**
+   * Starts a new segment. Records appended afterwards go to the new segment. Callers must not
+   * append concurrently with rolling.
+   * @return number of the new segment
+   * @throws IOException if the segment cannot be created
+   */
+  public int roll() throws IOException {
+    // Everything buffered belongs to the old segment
+    sync();
+    synchronized (fileLock) {
+      openSegment(segment + 1, 0);
+      return segment;
+    }
+  }
+
+  /**
+   * Deletes the segments numbered below the given one, once a snapshot covers them
+   * @param number first segment to keep
+   * @throws IOException if a segment cannot be deleted
+   */
+  public void deleteBefore(int number) throws IOException {
+    for (int existing : segments()) {
+      if (existing < number) {
+        Files.deleteIfExists(segmentPath(existing));
+      }
+    }
+  }
+
+  private void write() {
+    while (true) {
+      Frame batch;
+      long batchEnd;
+      synchronized (this) {
+        while (appended == durable) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        batch = pending;
+        pending = spare;
+        spare = batch;
+        batchEnd = appended;
+      }
+
+      // Appends keep filling the other buffer while this batch is written and fsynced
+      ByteBuffer buffer = batch.buffer();
+      buffer.flip();
+      boolean written = true;
+      synchronized (fileLock) {
+        try {
+          if (mmap) {
+            if (mapped.remaining() < buffer.remaining()) {
+              openSegment(segment + 1, buffer.remaining());
+            }
+            mapped.put(buffer);
+            mapped.force();
+          } else {
+            while (buffer.hasRemaining()) {
+              channel.write(buffer);
+            }
+            channel.force(false);
+          }
+        } catch (IOException e) {
+          LOG.error("Write-ahead log failure", e);
+          written = false;
+        }
+      }
+      buffer.clear();
+
+      synchronized (this) {
+        failed = failed || !written;
+        durable = batchEnd;
+        notifyAll();
+      }
+    }
+  }
+
+  private void openSegment(int number, long minBytes) throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+    segment = number;
+    if (mmap) {
+      channel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE,
+              StandardOpenOption.READ, StandardOpenOption.WRITE);
+      mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, minBytes));
+    } else {
+      channel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+  }
+
+  private Path segmentPath(int number) {
+    return dir.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+  }
+
+  private List<Integer> segments() throws IOException {
+    List<Integer> numbers = new ArrayList<>();
+    try (Stream<Path> files = Files.list(dir)) {
+      files.map(path -> path.getFileName().toString())
+              .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+              .forEach(name -> numbers.add(Integer.parseInt(
+                      name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+    }
+    numbers.sort(null);
+    return numbers;
+  }
+}
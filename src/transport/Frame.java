@@ -0,0 +1,74 @@
+package transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Growable buffer that binary messages are encoded into. A frame on the wire is laid out as
+ * [int length][int requestId][byte type][payload], where length covers everything after it.
+ */
+public class Frame {
+  private ByteBuffer buffer;
+
+  public Frame(int capacity) {
+    this.buffer = ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Starts a new frame at the current position
+   * @param requestId id matching a reply to its request
+   * @param type message type
+   * @return position of the frame, to be passed to end
+   */
+  public int begin(int requestId, byte type) {
+    int start = buffer.position();
+    putInt(0);
+    putInt(requestId);
+    put(type);
+    return start;
+  }
+
+  /**
+   * Completes the frame started at the given position by filling in its length
+   * @param start position returned by begin
+   */
+  public void end(int start) {
+    buffer.putInt(start, buffer.position() - start - Integer.BYTES);
+  }
+
+  public void put(byte value) {
+    ensure(1);
+    buffer.put(value);
+  }
+
+  public void putInt(int value) {
+    ensure(Integer.BYTES);
+    buffer.putInt(value);
+  }
+
+  public void putLong(long value) {
+    ensure(Long.BYTES);
+    buffer.putLong(value);
+  }
+
+  public void put(byte[] value) {
+    ensure(value.length);
+    buffer.put(value);
+  }
+
+  /**
+   * Underlying buffer in write mode. Callers flip it to drain it and compact it afterwards.
+   * @return the buffer
+   */
+  public ByteBuffer buffer() {
+    return buffer;
+  }
+
+  private void ensure(int bytes) {
+    if (buffer.remaining() < bytes) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+      buffer.flip();
+      larger.put(buffer);
+      buffer = larger;
+    }
+  }
+}
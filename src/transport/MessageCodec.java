@@ -0,0 +1,210 @@
+package transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import paxos.Operation;
+import paxos.Promise;
+import paxos.Proposal;
+import paxos.RequestMethod;
+import paxos.Status;
+
+/**
+ * Compact binary encoding of the Paxos message types, used in place of Java serialization
+ */
+public final class MessageCodec {
+
+  // Request types
+  public static final byte PREPARE = 1;
+  public static final byte PREPARE_FROM = 2;
+  public static final byte ACCEPT = 3;
+  public static final byte LEARN = 4;
+  public static final byte READ_INDEX = 5;
+  // Client request types
+  public static final byte GET = 16;
+  public static final byte PUT = 17;
+  public static final byte DELETE = 18;
+  public static final byte LEADER = 19;
+  // Reply to any request
+  public static final byte REPLY = 64;
+
+  // Tags of the values carried in a reply
+  private static final byte NULL = 0;
+  private static final byte PROMISE = 1;
+  private static final byte BOOLEAN = 2;
+  private static final byte STRING = 3;
+  private static final byte INTEGER = 4;
+
+  private static final RequestMethod[] METHODS = RequestMethod.values();
+  private static final Status[] STATUSES = Status.values();
+
+  private MessageCodec() {
+  }
+
+  public static void writeString(Frame frame, String value) {
+    if (value == null) {
+      frame.putInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    frame.putInt(bytes.length);
+    frame.put(bytes);
+  }
+
+  public static String readString(ByteBuffer buffer) throws IOException {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > buffer.remaining()) {
+      throw new IOException("String of " + length + " bytes overruns the frame");
+    }
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+            StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * Writes an operation with its request id; nested operations of a batch are written without
+   */
+  public static void writeOperation(Frame frame, Operation operation) {
+    if (operation == null) {
+      frame.put((byte) -1);
+      return;
+    }
+    frame.put((byte) operation.getMethod().ordinal());
+    frame.putInt(operation.getOrigin());
+    frame.putLong(operation.getSequence());
+    writeBody(frame, operation);
+  }
+
+  private static void writeBody(Frame frame, Operation operation) {
+    if (operation.getMethod().isComposite()) {
+      frame.putInt(operation.getOperations().size());
+      for (Operation batched : operation.getOperations()) {
+        frame.put((byte) batched.getMethod().ordinal());
+        writeBody(frame, batched);
+      }
+      return;
+    }
+    frame.putInt(operation.getKey());
+    writeString(frame, operation.getValue());
+    if (operation.getMethod() == RequestMethod.CAS) {
+      writeString(frame, operation.getExpected());
+    }
+  }
+
+  public static Operation readOperation(ByteBuffer buffer) throws IOException {
+    byte method = buffer.get();
+    if (method < 0) {
+      return null;
+    }
+    int origin = buffer.getInt();
+    long sequence = buffer.getLong();
+    Operation operation = readBody(buffer, method);
+    operation.setRequestId(origin, sequence);
+    return operation;
+  }
+
+  private static Operation readBody(ByteBuffer buffer, byte ordinal) throws IOException {
+    RequestMethod method = method(ordinal);
+    if (method.isComposite()) {
+      int size = buffer.getInt();
+      // Every nested operation takes at least its method byte
+      if (size < 0 || size > buffer.remaining()) {
+        throw new IOException("Invalid batch size " + size);
+      }
+      List<Operation> operations = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        operations.add(readBody(buffer, buffer.get()));
+      }
+      return new Operation(method, operations);
+    }
+    int key = buffer.getInt();
+    String value = readString(buffer);
+    if (method == RequestMethod.CAS) {
+      return new Operation(key, readString(buffer), value);
+    }
+    return new Operation(method, key, value);
+  }
+
+  private static RequestMethod method(byte ordinal) throws IOException {
+    if (ordinal < 0 || ordinal >= METHODS.length) {
+      throw new IOException("Unknown request method " + ordinal);
+    }
+    return METHODS[ordinal];
+  }
+
+  public static void writeProposal(Frame frame, Proposal proposal) {
+    if (proposal == null) {
+      frame.put((byte) 0);
+      return;
+    }
+    frame.put((byte) 1);
+    frame.putLong(proposal.getId());
+    frame.putInt(proposal.getSlot());
+    writeOperation(frame, proposal.getOperation());
+  }
+
+  public static Proposal readProposal(ByteBuffer buffer) throws IOException {
+    if (buffer.get() == 0) {
+      return null;
+    }
+    long id = buffer.getLong();
+    int slot = buffer.getInt();
+    return new Proposal(id, slot, readOperation(buffer));
+  }
+
+  /**
+   * Writes the value returned by an acceptor as the payload of a reply
+   * @param frame frame to write to
+   * @param value Promise, Boolean, String, Integer or null
+   */
+  public static void writeReply(Frame frame, Object value) {
+    if (value == null) {
+      frame.put(NULL);
+    } else if (value instanceof Promise) {
+      Promise promise = (Promise) value;
+      frame.put(PROMISE);
+      frame.put((byte) promise.getStatus().ordinal());
+      writeProposal(frame, promise.getProposal());
+    } else if (value instanceof Boolean) {
+      frame.put(BOOLEAN);
+      frame.put((byte) ((Boolean) value ? 1 : 0));
+    } else if (value instanceof String) {
+      frame.put(STRING);
+      writeString(frame, (String) value);
+    } else if (value instanceof Integer) {
+      frame.put(INTEGER);
+      frame.putInt((Integer) value);
+    } else {
+      throw new IllegalArgumentException("Cannot encode " + value.getClass());
+    }
+  }
+
+  public static Object readReply(ByteBuffer buffer) throws IOException {
+    byte tag = buffer.get();
+    switch (tag) {
+      case NULL:
+        return null;
+      case PROMISE:
+        byte status = buffer.get();
+        if (status < 0 || status >= STATUSES.length) {
+          throw new IOException("Unknown promise status " + status);
+        }
+        return new Promise(STATUSES[status], readProposal(buffer));
+      case BOOLEAN:
+        return buffer.get() == 1;
+      case STRING:
+        return readString(buffer);
+      case INTEGER:
+        return buffer.getInt();
+      default:
+        throw new IOException("Unknown reply tag " + tag);
+    }
+  }
+}
@@ -0,0 +1,323 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import logging.Logger;
+
+/**
+ * Single selector thread driving any number of non-blocking connections. Incoming bytes are
+ * split into frames and handed to the connection's handler on the loop thread; outgoing frames
+ * are encoded straight into the connection's output buffer by the sending thread and flushed
+ * by the loop.
+ */
+public class NioEventLoop {
+
+  private static final Logger LOG = Logger.get(NioEventLoop.class);
+
+  /**
+   * Receives the frames of a connection. Called on the loop thread, so implementations must
+   * decode the payload before returning and hand any blocking work to another thread.
+   */
+  public interface FrameHandler {
+    /**
+     * @throws IOException if the frame is malformed, which closes the connection
+     */
+    void onFrame(Connection connection, int requestId, byte type, ByteBuffer payload) throws IOException;
+
+    void onClose(Connection connection);
+  }
+
+  /**
+   * Encodes one frame into a connection's output buffer
+   */
+  public interface FrameEncoder {
+    void encode(Frame frame);
+  }
+
+  /**
+   * A non-blocking socket connection registered with the loop
+   */
+  public class Connection {
+    private final SocketChannel channel;
+    private final FrameHandler handler;
+    private ByteBuffer in;
+    private final Frame out;
+    private SelectionKey key;
+    private volatile boolean open;
+    // False while a non-blocking connect is in progress; frames sent meanwhile are buffered
+    private volatile boolean connected;
+
+    private Connection(SocketChannel channel, FrameHandler handler, boolean connected) {
+      this.channel = channel;
+      this.handler = handler;
+      this.in = ByteBuffer.allocate(BUFFER_SIZE);
+      this.out = new Frame(BUFFER_SIZE);
+      this.open = true;
+      this.connected = connected;
+    }
+
+    /**
+     * Queues a frame for sending. Safe to call from any thread.
+     * @param requestId id matching a reply to its request
+     * @param type message type
+     * @param encoder writes the payload
+     * @throws IOException if the connection is closed
+     */
+    public void send(int requestId, byte type, FrameEncoder encoder) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      synchronized (out) {
+        int start = out.begin(requestId, type);
+        encoder.encode(out);
+        out.end(start);
+      }
+      pendingWrites.add(this);
+      selector.wakeup();
+    }
+
+    public boolean isOpen() {
+      return open;
+    }
+
+    public void close() {
+      if (!open) {
+        return;
+      }
+      open = false;
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+      }
+      handler.onClose(this);
+    }
+
+    private void read() throws IOException {
+      if (channel.read(in) < 0) {
+        close();
+        return;
+      }
+      in.flip();
+      while (in.remaining() >= Integer.BYTES) {
+        int length = in.getInt(in.position());
+        if (in.remaining() < Integer.BYTES + length) {
+          break;
+        }
+        int end = in.position() + Integer.BYTES + length;
+        in.position(in.position() + Integer.BYTES);
+        int requestId = in.getInt();
+        byte type = in.get();
+        int limit = in.limit();
+        in.limit(end);
+        handler.onFrame(this, requestId, type, in);
+        in.limit(limit);
+        in.position(end);
+      }
+      in.compact();
+      // Grow the buffer for frames larger than it
+      if (!in.hasRemaining()) {
+        ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+        in.flip();
+        larger.put(in);
+        in = larger;
+      }
+    }
+
+    private void flush() throws IOException {
+      synchronized (out) {
+        ByteBuffer buffer = out.buffer();
+        buffer.flip();
+        channel.write(buffer);
+        boolean remaining = buffer.hasRemaining();
+        buffer.compact();
+        key.interestOps(remaining ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      }
+    }
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Selector selector;
+  private final Queue<Connection> pendingRegistrations;
+  private final Queue<Connection> pendingWrites;
+  private final Queue<Runnable> pendingTasks;
+  private final Thread thread;
+  private volatile boolean closed;
+
+  public NioEventLoop(String name) throws IOException {
+    this.selector = Selector.open();
+    this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+    this.pendingWrites = new ConcurrentLinkedQueue<>();
+    this.pendingTasks = new ConcurrentLinkedQueue<>();
+    this.thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops the loop thread, closing every connection and listening channel of the loop along
+   * with the selector. Waits for the thread to finish unless called from it.
+   */
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    if (Thread.currentThread() != thread) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Registers a connected channel with the loop
+   * @param channel connected socket channel
+   * @param handler receives the frames of the connection
+   * @return the connection
+   * @throws IOException if the channel cannot be configured
+   */
+  public Connection register(SocketChannel channel, FrameHandler handler) throws IOException {
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    Connection connection = new Connection(channel, handler, true);
+    pendingRegistrations.add(connection);
+    selector.wakeup();
+    return connection;
+  }
+
+  /**
+   * Opens a connection without blocking. The connect completes on the loop thread; frames sent
+   * before it are buffered and flushed once connected, and a failed connect closes the connection.
+   * @param address address of the server
+   * @param handler receives the frames of the connection
+   * @return the connection
+   * @throws IOException if the channel cannot be opened or the address is unresolved
+   */
+  public Connection connect(InetSocketAddress address, FrameHandler handler) throws IOException {
+    SocketChannel channel = SocketChannel.open();
+    try {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      Connection connection = new Connection(channel, handler, channel.connect(address));
+      pendingRegistrations.add(connection);
+      selector.wakeup();
+      return connection;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Accepts connections on a server channel and registers each of them with the loop
+   * @param server bound server channel
+   * @param handler receives the frames of every accepted connection
+   * @throws IOException if the channel cannot be configured
+   */
+  public void listen(ServerSocketChannel server, FrameHandler handler) throws IOException {
+    server.configureBlocking(false);
+    pendingTasks.add(() -> {
+      try {
+        server.register(selector, SelectionKey.OP_ACCEPT, handler);
+      } catch (ClosedChannelException e) {
+        LOG.warn("Transport error: {}", e);
+      }
+    });
+    selector.wakeup();
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        selector.select();
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+          task.run();
+        }
+        Connection connection;
+        while ((connection = pendingRegistrations.poll()) != null) {
+          try {
+            connection.key = connection.channel.register(selector,
+                    connection.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+          } catch (ClosedChannelException e) {
+            connection.close();
+          }
+        }
+        while ((connection = pendingWrites.poll()) != null) {
+          if (connection.open && connection.connected && connection.key != null) {
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          }
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid() && key.isAcceptable()) {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel != null) {
+              channel.configureBlocking(false);
+              channel.socket().setTcpNoDelay(true);
+              Connection accepted = new Connection(channel, (FrameHandler) key.attachment(), true);
+              accepted.key = channel.register(selector, SelectionKey.OP_READ, accepted);
+            }
+            continue;
+          }
+          Connection ready = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isConnectable() && ready.channel.finishConnect()) {
+              ready.connected = true;
+              // Flushes whatever was sent while connecting
+              key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+              continue;
+            }
+            if (key.isValid() && key.isReadable()) {
+              ready.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              ready.flush();
+            }
+          } catch (IOException e) {
+            ready.close();
+          } catch (RuntimeException e) {
+            // A failing handler only takes down its own connection, not the others of the loop
+            LOG.warn("Closing connection after a handler error: {}", e);
+            ready.close();
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Transport error: {}", e);
+      }
+    }
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        ((Connection) key.attachment()).close();
+      } else {
+        try {
+          key.channel().close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+    Connection connection;
+    while ((connection = pendingRegistrations.poll()) != null) {
+      connection.close();
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      LOG.warn("Transport error: {}", e);
+    }
+  }
+}
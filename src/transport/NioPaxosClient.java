@@ -0,0 +1,288 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logging.Logger;
+import paxos.Operation;
+import paxos.Promise;
+import paxos.Proposal;
+import server.PaxosServer;
+import service.ScanResult;
+import storage.SnapshotChunk;
+
+/**
+ * Proposer side of the binary transport. The Paxos phase messages of many concurrent proposals
+ * are multiplexed over one non-blocking connection and matched to their replies by request id.
+ * Everything else, and every message while the connection is unavailable, goes through the
+ * RMI stub of the acceptor. Every request starts with the shard of the acceptor, since one
+ * server hosts a replica of every shard behind the same port.
+ */
+public class NioPaxosClient implements PaxosServer, NioEventLoop.FrameHandler {
+
+  private static final Logger LOG = Logger.get(NioPaxosClient.class);
+
+  // How long to wait for a reply before reporting the acceptor as not responding
+  private static final long TIMEOUT_MILLIS = Long.getLong("paxos.acceptor.timeoutMillis", 20000);
+  // Minimum time between two attempts to open the connection
+  private static final long RECONNECT_MILLIS = 1000;
+  // Marks a message that could not be sent over the connection
+  private static final Object UNAVAILABLE = new Object();
+
+  /**
+   * A request waiting for its reply, with the connection it was sent on
+   */
+  private static class Pending {
+    private final NioEventLoop.Connection connection;
+    private final CompletableFuture<Object> reply;
+
+    Pending(NioEventLoop.Connection connection) {
+      this.connection = connection;
+      this.reply = new CompletableFuture<>();
+    }
+  }
+
+  private final PaxosServer fallback;
+  private final int shard;
+  private final int port;
+  private final int serverId;
+  private final InetSocketAddress address;
+  private final NioEventLoop loop;
+  private final AtomicInteger nextRequestId;
+  private final Map<Integer, Pending> pending;
+  private volatile NioEventLoop.Connection connection;
+  private long lastConnectAttempt;
+
+  /**
+   * @param fallback RMI stub of the acceptor
+   * @param shard shard of the acceptor
+   * @param address address of the acceptor's binary transport
+   * @param loop event loop driving the connection
+   * @throws RemoteException if the port or server id of the acceptor cannot be read
+   */
+  public NioPaxosClient(PaxosServer fallback, int shard, InetSocketAddress address,
+                        NioEventLoop loop) throws RemoteException {
+    this.fallback = fallback;
+    this.shard = shard;
+    this.port = fallback.getPort();
+    this.serverId = fallback.getServerId();
+    this.address = address;
+    this.loop = loop;
+    this.nextRequestId = new AtomicInteger();
+    this.pending = new ConcurrentHashMap<>();
+    this.lastConnectAttempt = 0;
+  }
+
+  @Override
+  public Promise prepare(Proposal proposal) throws RemoteException {
+    Object reply = call(MessageCodec.PREPARE, frame -> MessageCodec.writeProposal(frame, proposal));
+    return reply == UNAVAILABLE ? fallback.prepare(proposal) : (Promise) reply;
+  }
+
+  @Override
+  public Promise prepareFrom(Proposal proposal) throws RemoteException {
+    Object reply = call(MessageCodec.PREPARE_FROM, frame -> MessageCodec.writeProposal(frame, proposal));
+    return reply == UNAVAILABLE ? fallback.prepareFrom(proposal) : (Promise) reply;
+  }
+
+  @Override
+  public Boolean accept(Proposal proposal) throws RemoteException {
+    Object reply = call(MessageCodec.ACCEPT, frame -> MessageCodec.writeProposal(frame, proposal));
+    return reply == UNAVAILABLE ? fallback.accept(proposal) : (Boolean) reply;
+  }
+
+  @Override
+  public String learn(Proposal proposal) throws RemoteException {
+    Object reply = call(MessageCodec.LEARN, frame -> MessageCodec.writeProposal(frame, proposal));
+    return reply == UNAVAILABLE ? fallback.learn(proposal) : (String) reply;
+  }
+
+  @Override
+  public Integer readIndex(long ballot) throws RemoteException {
+    Object reply = call(MessageCodec.READ_INDEX, frame -> frame.putLong(ballot));
+    return reply == UNAVAILABLE ? fallback.readIndex(ballot) : (Integer) reply;
+  }
+
+  @Override
+  public List<Proposal> getChosen(int fromSlot, int toSlot) throws RemoteException {
+    return fallback.getChosen(fromSlot, toSlot);
+  }
+
+  @Override
+  public int getLastApplied() throws RemoteException {
+    return fallback.getLastApplied();
+  }
+
+  @Override
+  public SnapshotChunk getSnapshotChunk(int slot, int offset, int maxEntries) throws RemoteException {
+    return fallback.getSnapshotChunk(slot, offset, maxEntries);
+  }
+
+  @Override
+  public String propose(Operation operation) throws RemoteException {
+    return fallback.propose(operation);
+  }
+
+  @Override
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public int getServerId() {
+    return serverId;
+  }
+
+  @Override
+  public String get(int key) throws RemoteException {
+    return fallback.get(key);
+  }
+
+  @Override
+  public String get(int key, long maxStalenessMillis) throws RemoteException {
+    return fallback.get(key, maxStalenessMillis);
+  }
+
+  @Override
+  public String put(int key, String value) throws RemoteException {
+    return fallback.put(key, value);
+  }
+
+  @Override
+  public String delete(int key) throws RemoteException {
+    return fallback.delete(key);
+  }
+
+  @Override
+  public int getLeaderId() throws RemoteException {
+    return fallback.getLeaderId();
+  }
+
+  @Override
+  public int getLeader(int key) throws RemoteException {
+    return fallback.getLeader(key);
+  }
+
+  @Override
+  public List<String> multiGet(List<Integer> keys) throws RemoteException {
+    return fallback.multiGet(keys);
+  }
+
+  @Override
+  public String multiPut(Map<Integer, String> entries) throws RemoteException {
+    return fallback.multiPut(entries);
+  }
+
+  @Override
+  public String compareAndSet(int key, String expected, String value) throws RemoteException {
+    return fallback.compareAndSet(key, expected, value);
+  }
+
+  @Override
+  public ScanResult scan(int from, int to, int limit) throws RemoteException {
+    return fallback.scan(from, to, limit);
+  }
+
+  @Override
+  public ScanResult scanNext(long cursor, int limit) throws RemoteException {
+    return fallback.scanNext(cursor, limit);
+  }
+
+  @Override
+  public void closeScan(long cursor) throws RemoteException {
+    fallback.closeScan(cursor);
+  }
+
+  /**
+   * Closes the connection once the acceptor has been resolved again
+   */
+  public synchronized void close() {
+    if (connection != null) {
+      connection.close();
+    }
+  }
+
+  @Override
+  public void onFrame(NioEventLoop.Connection connection, int requestId, byte type, ByteBuffer payload)
+          throws IOException {
+    Object reply = MessageCodec.readReply(payload);
+    Pending waiting = pending.remove(requestId);
+    if (waiting != null) {
+      waiting.reply.complete(reply);
+    }
+  }
+
+  @Override
+  public void onClose(NioEventLoop.Connection closed) {
+    // Requests in flight on the connection may or may not have been handled, so report them as
+    // not responding. Requests already sent on a newer connection still get their replies.
+    for (Map.Entry<Integer, Pending> entry : pending.entrySet()) {
+      if (entry.getValue().connection == closed && pending.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().reply.complete(null);
+      }
+    }
+  }
+
+  /**
+   * Sends a request and waits for its reply
+   * @return the reply, null if the acceptor did not respond, or UNAVAILABLE if the request
+   *         could not be sent
+   */
+  private Object call(byte type, NioEventLoop.FrameEncoder encoder) {
+    NioEventLoop.Connection current = connection;
+    if (current == null || !current.isOpen()) {
+      current = connect();
+    }
+    if (current == null) {
+      return UNAVAILABLE;
+    }
+    int requestId = nextRequestId.incrementAndGet();
+    Pending waiting = new Pending(current);
+    pending.put(requestId, waiting);
+    try {
+      current.send(requestId, type, frame -> {
+        frame.putInt(shard);
+        encoder.encode(frame);
+      });
+      return waiting.reply.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      pending.remove(requestId);
+      return UNAVAILABLE;
+    } catch (InterruptedException e) {
+      // The phase no longer needs this reply
+      pending.remove(requestId);
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (Exception e) {
+      pending.remove(requestId);
+      return null;
+    }
+  }
+
+  private synchronized NioEventLoop.Connection connect() {
+    if (connection != null && connection.isOpen()) {
+      return connection;
+    }
+    long now = System.currentTimeMillis();
+    if (now - lastConnectAttempt < RECONNECT_MILLIS) {
+      return null;
+    }
+    lastConnectAttempt = now;
+    try {
+      connection = loop.register(SocketChannel.open(address), this);
+      return connection;
+    } catch (IOException e) {
+      LOG.warn("Binary transport to port {} unavailable, using RMI", port);
+      return null;
+    }
+  }
+}
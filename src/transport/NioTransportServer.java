@@ -0,0 +1,150 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import paxos.Proposal;
+import server.PaxosServer;
+
+/**
+ * Server side of the binary transport. Decodes Paxos messages and client requests on the
+ * event loop and runs them against the local server on worker pools, so a slow message never
+ * holds up the other requests multiplexed on the same connection. Requests are addressed to
+ * the local replica of a shard. Client requests, which wait for consensus, and the Paxos
+ * messages that consensus needs run on separate pools, so that waiting clients never starve
+ * the acceptor. Both pools and their queues are bounded; a message turned away because its
+ * pool is full is answered at once with an empty reply, which senders treat as a failed call.
+ */
+public class NioTransportServer implements NioEventLoop.FrameHandler {
+
+  private static final int WORKER_THREADS = Integer.getInteger("paxos.nio.workerThreads", 256);
+  private static final int PEER_THREADS = Integer.getInteger("paxos.nio.peerThreads", 64);
+  private static final int WORKER_QUEUE_SIZE = Integer.getInteger("paxos.nio.workerQueueSize", 4096);
+
+  private final List<? extends PaxosServer> targets;
+  private final NioEventLoop loop;
+  // Client requests
+  private final ThreadPoolExecutor workers;
+  // Paxos messages from the coordinators
+  private final ThreadPoolExecutor peers;
+
+  /**
+   * @param targets local replica of each shard, indexed by shard
+   * @param port port to listen on
+   * @throws IOException if the port cannot be bound
+   */
+  public NioTransportServer(List<? extends PaxosServer> targets, int port) throws IOException {
+    this.targets = targets;
+    this.loop = new NioEventLoop("nio-server-" + port);
+    this.workers = pool(WORKER_THREADS, "nio-worker-" + port);
+    this.peers = pool(PEER_THREADS, "nio-peer-" + port);
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(port));
+    loop.listen(server, this);
+  }
+
+  @Override
+  public void onFrame(NioEventLoop.Connection connection, int requestId, byte type, ByteBuffer payload)
+          throws IOException {
+    int shard = payload.getInt();
+    Proposal proposal = null;
+    long ballot = 0;
+    int key = 0;
+    String value = null;
+    switch (type) {
+      case MessageCodec.READ_INDEX:
+        ballot = payload.getLong();
+        break;
+      case MessageCodec.GET:
+      case MessageCodec.PUT:
+      case MessageCodec.DELETE:
+        key = payload.getInt();
+        value = MessageCodec.readString(payload);
+        break;
+      case MessageCodec.LEADER:
+        break;
+      default:
+        proposal = MessageCodec.readProposal(payload);
+    }
+    Proposal request = proposal;
+    long requestBallot = ballot;
+    int requestKey = key;
+    String requestValue = value;
+    boolean client = type == MessageCodec.GET || type == MessageCodec.PUT || type == MessageCodec.DELETE;
+    try {
+      (client ? workers : peers).execute(() -> {
+        Object reply;
+        try {
+          // Clients pick the shard themselves, so it may not exist here
+          PaxosServer target = shard >= 0 && shard < targets.size() ? targets.get(shard) : null;
+          reply = target == null ? null : handle(target, type, request, requestBallot, requestKey, requestValue);
+        } catch (Exception e) {
+          reply = null;
+        }
+        reply(connection, requestId, reply);
+      });
+    } catch (RejectedExecutionException e) {
+      // Overloaded: fail the request now rather than stall the event loop
+      reply(connection, requestId, null);
+    }
+  }
+
+  @Override
+  public void onClose(NioEventLoop.Connection connection) {
+  }
+
+  private static ThreadPoolExecutor pool(int threads, String name) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(WORKER_QUEUE_SIZE), runnable -> {
+              Thread thread = new Thread(runnable, name);
+              thread.setDaemon(true);
+              return thread;
+            }, (task, executor) -> {
+              throw new RejectedExecutionException("Worker queue is full");
+            });
+    // Idle threads are released between bursts
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  private static void reply(NioEventLoop.Connection connection, int requestId, Object reply) {
+    try {
+      connection.send(requestId, MessageCodec.REPLY, frame -> MessageCodec.writeReply(frame, reply));
+    } catch (IOException ignored) {
+      // The proposer has gone away and no longer waits for the reply
+    }
+  }
+
+  private Object handle(PaxosServer target, byte type, Proposal proposal, long ballot, int key, String value)
+          throws Exception {
+    switch (type) {
+      case MessageCodec.PREPARE:
+        return target.prepare(proposal);
+      case MessageCodec.PREPARE_FROM:
+        return target.prepareFrom(proposal);
+      case MessageCodec.ACCEPT:
+        return target.accept(proposal);
+      case MessageCodec.LEARN:
+        return target.learn(proposal);
+      case MessageCodec.READ_INDEX:
+        return target.readIndex(ballot);
+      case MessageCodec.GET:
+        return target.get(key);
+      case MessageCodec.PUT:
+        return target.put(key, value);
+      case MessageCodec.DELETE:
+        return target.delete(key);
+      case MessageCodec.LEADER:
+        return target.getLeaderId();
+      default:
+        throw new IllegalArgumentException("Unknown message type " + type);
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package transport;
+
+/**
+ * Static class holding the transport used for Paxos messages between coordinator and acceptors
+ */
+public final class Transports {
+
+  // Binary NIO transport when "nio", Java RMI when "rmi"
+  public static final boolean BINARY = "nio".equals(System.getProperty("paxos.transport", "rmi"));
+  // The binary transport of an acceptor listens on its RMI port plus this offset
+  private static final int PORT_OFFSET = Integer.getInteger("paxos.nio.portOffset", 1000);
+
+  private Transports() {
+  }
+
+  public static int binaryPort(int rmiPort) {
+    return rmiPort + PORT_OFFSET;
+  }
+}